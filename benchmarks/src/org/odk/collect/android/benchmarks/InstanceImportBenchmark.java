@@ -0,0 +1,201 @@
+/*
+ * Copyright (C) 2009 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.odk.collect.android.benchmarks;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.Arrays;
+
+import org.javarosa.core.model.FormDef;
+import org.javarosa.core.model.condition.EvaluationContext;
+import org.javarosa.core.model.instance.TreeElement;
+import org.javarosa.model.xform.XFormsModule;
+import org.javarosa.xform.parse.XFormParser;
+import org.javarosa.xform.util.XFormUtils;
+import org.odk.collect.android.logic.InstanceImporter;
+
+/**
+ * Times {@link InstanceImporter} against the import it replaced, which read the saved instance
+ * into bytes, built it with {@link XFormParser#restoreDataModel} and populated a deep copy of the
+ * blank instance. Builds a household form and an instance with 1,500 repeat rows in a temporary
+ * folder, checks both imports give the same tree, and prints the median time of each.
+ * <p>
+ * Runs on a desktop jvm, with the android.util classes the importer uses supplied by the stubs in
+ * benchmarks/stubs. Compile those, this class and the importer against
+ * lib/javarosa-libraries.jar and a kxml2 jar, without android.jar, then run:
+ *
+ * <pre>
+ * java -cp classes:lib/javarosa-libraries.jar:kxml2.jar \
+ *     org.odk.collect.android.benchmarks.InstanceImportBenchmark [rows] [runs]
+ * </pre>
+ *
+ * @author Carl Hartung (carlhartung@gmail.com)
+ */
+public class InstanceImportBenchmark {
+
+    private final static String FORM =
+            "<h:html xmlns=\"http://www.w3.org/2002/xforms\""
+                    + " xmlns:h=\"http://www.w3.org/1999/xhtml\""
+                    + " xmlns:jr=\"http://openrosa.org/javarosa\">"
+                    + "<h:head><h:title>household</h:title><model><instance><data id=\"hh\">"
+                    + "<village/><visited/><member jr:template=\"\"><name/><age/><sex/></member>"
+                    + "</data></instance>"
+                    + "<bind nodeset=\"/data/visited\" type=\"date\"/>"
+                    + "<bind nodeset=\"/data/member/age\" type=\"int\"/>"
+                    + "<bind nodeset=\"/data/member/sex\" type=\"select1\"/>"
+                    + "</model></h:head><h:body>"
+                    + "<input ref=\"/data/village\"><label>village</label></input>"
+                    + "<input ref=\"/data/visited\"><label>visited</label></input>"
+                    + "<repeat nodeset=\"/data/member\">"
+                    + "<input ref=\"/data/member/name\"><label>name</label></input>"
+                    + "<input ref=\"/data/member/age\"><label>age</label></input>"
+                    + "<select1 ref=\"/data/member/sex\"><label>sex</label>"
+                    + "<item><label>f</label><value>f</value></item>"
+                    + "<item><label>m</label><value>m</value></item></select1>"
+                    + "</repeat></h:body></h:html>";
+
+
+    public static void main(String[] args) throws IOException {
+        int rows = args.length > 0 ? Integer.parseInt(args[0]) : 1500;
+        int runs = args.length > 1 ? Integer.parseInt(args[1]) : 9;
+
+        new XFormsModule().registerModule();
+        File instance = File.createTempFile("instance", ".xml");
+        instance.deleteOnExit();
+        writeInstance(instance, rows);
+
+        // both ways must give the same tree before either is worth timing
+        String streamed = dump(importStreamed(instance));
+        String populated = dump(importPopulated(instance));
+        if (!streamed.equals(populated)) {
+            System.out.println("Imports differ");
+            System.exit(1);
+        }
+
+        long[] streamedTimes = new long[runs];
+        long[] populatedTimes = new long[runs];
+        for (int i = 0; i < runs; i++) {
+            FormDef fd = loadForm();
+            long start = System.nanoTime();
+            new InstanceImporter(fd).importInstance(instance);
+            streamedTimes[i] = System.nanoTime() - start;
+
+            fd = loadForm();
+            start = System.nanoTime();
+            populate(fd, instance);
+            populatedTimes[i] = System.nanoTime() - start;
+        }
+
+        System.out.println(rows + " rows, " + instance.length() + " bytes, " + runs + " runs");
+        System.out.println("streamed  " + median(streamedTimes) / 1000000 + "ms");
+        System.out.println("populated " + median(populatedTimes) / 1000000 + "ms");
+    }
+
+
+    private static void writeInstance(File file, int rows) throws IOException {
+        Writer w = new OutputStreamWriter(new FileOutputStream(file), "UTF-8");
+        try {
+            w.write("<?xml version='1.0' ?><data id=\"hh\"><village>Kisumu</village>");
+            w.write("<visited>2010-03-01</visited>");
+            for (int i = 0; i < rows; i++) {
+                w.write("<member><name>member " + i + "</name><age>" + (i % 90) + "</age><sex>"
+                        + (i % 2 == 0 ? "f" : "m") + "</sex></member>");
+            }
+            w.write("</data>");
+        } finally {
+            w.close();
+        }
+    }
+
+
+    private static FormDef loadForm() throws IOException {
+        FormDef fd =
+                XFormUtils.getFormFromInputStream(new ByteArrayInputStream(FORM.getBytes("UTF-8")));
+        fd.setEvaluationContext(new EvaluationContext());
+        fd.initialize(false);
+        return fd;
+    }
+
+
+    private static FormDef importStreamed(File instance) throws IOException {
+        FormDef fd = loadForm();
+        if (!new InstanceImporter(fd).importInstance(instance)) {
+            throw new IOException("Cannot import " + instance.getAbsolutePath());
+        }
+        return fd;
+    }
+
+
+    private static FormDef importPopulated(File instance) throws IOException {
+        FormDef fd = loadForm();
+        populate(fd, instance);
+        return fd;
+    }
+
+
+    /**
+     * The import {@link InstanceImporter} replaced.
+     */
+    private static void populate(FormDef fd, File instance) throws IOException {
+        byte[] fileBytes = new byte[(int) instance.length()];
+        DataInputStream dis = new DataInputStream(new FileInputStream(instance));
+        try {
+            dis.readFully(fileBytes);
+        } finally {
+            dis.close();
+        }
+        TreeElement savedRoot = XFormParser.restoreDataModel(fileBytes, null).getRoot();
+        TreeElement templateRoot = fd.getInstance().getRoot().deepCopy(true);
+        templateRoot.populate(savedRoot, fd);
+        fd.getInstance().setRoot(templateRoot);
+    }
+
+
+    private static String dump(FormDef fd) {
+        StringBuilder sb = new StringBuilder();
+        dump(fd.getInstance().getRoot(), "", sb);
+        return sb.toString();
+    }
+
+
+    private static void dump(TreeElement e, String indent, StringBuilder sb) {
+        sb.append(indent).append(e.getName()).append('[').append(e.getMult()).append("] ");
+        sb.append(e.isRelevant()).append(' ');
+        if (e.getValue() != null) {
+            sb.append(e.getValue().getClass().getName()).append(':');
+            sb.append(e.getValue().getDisplayText());
+        }
+        sb.append('\n');
+        for (int i = 0; i < e.getNumChildren(); i++) {
+            dump(e.getChildAt(i), indent + " ", sb);
+        }
+    }
+
+
+    private static long median(long[] times) {
+        long[] sorted = times.clone();
+        Arrays.sort(sorted);
+        return sorted[sorted.length / 2];
+    }
+
+}
@@ -0,0 +1,48 @@
+/*
+ * Copyright (C) 2009 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package android.util;
+
+/**
+ * Stands in for the platform's log on a desktop jvm, printing errors and warnings only so the
+ * benchmarks aren't timing the console.
+ *
+ * @author Carl Hartung (carlhartung@gmail.com)
+ */
+public class Log {
+
+    public static int d(String tag, String msg) {
+        return 0;
+    }
+
+
+    public static int i(String tag, String msg) {
+        return 0;
+    }
+
+
+    public static int w(String tag, String msg) {
+        System.err.println("W/" + tag + ": " + msg);
+        return 0;
+    }
+
+
+    public static int e(String tag, String msg) {
+        System.err.println("E/" + tag + ": " + msg);
+        return 0;
+    }
+
+}
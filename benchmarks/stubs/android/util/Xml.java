@@ -0,0 +1,34 @@
+/*
+ * Copyright (C) 2009 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package android.util;
+
+import org.kxml2.io.KXmlParser;
+import org.xmlpull.v1.XmlPullParser;
+
+/**
+ * Stands in for the platform's xml factory on a desktop jvm, with the kxml parser the platform
+ * uses.
+ *
+ * @author Carl Hartung (carlhartung@gmail.com)
+ */
+public class Xml {
+
+    public static XmlPullParser newPullParser() {
+        return new KXmlParser();
+    }
+
+}
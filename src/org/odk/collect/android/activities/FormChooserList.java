@@ -17,6 +17,7 @@
 package org.odk.collect.android.activities;
 
 import org.odk.collect.android.R;
+import org.odk.collect.android.adapters.FileListAdapter;
 import org.odk.collect.android.database.FileDbAdapter;
 import org.odk.collect.android.logic.GlobalConstants;
 
@@ -26,7 +27,6 @@ import android.database.Cursor;
 import android.os.Bundle;
 import android.view.View;
 import android.widget.ListView;
-import android.widget.SimpleCursorAdapter;
 
 /**
  * Responsible for displaying all the valid forms in the forms directory. Stores
@@ -37,6 +37,8 @@ import android.widget.SimpleCursorAdapter;
  */
 public class FormChooserList extends ListActivity {
 
+    private FileListAdapter mForms;
+
     @Override
     public void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
@@ -47,25 +49,29 @@ public class FormChooserList extends ListActivity {
 
 
     /**
-     * Get form list from database and insert into view.
+     * Get form list from database and insert into view. The list follows forms being added or
+     * removed while it is showing.
      */
     private void refreshView() {
-        // get all forms that match the status.
-        FileDbAdapter fda = new FileDbAdapter(this);
-        fda.open();
-        fda.addOrphanForms();
-        Cursor c = fda.fetchFilesByType(FileDbAdapter.TYPE_FORM, null);
-        startManagingCursor(c);
-
-        // create data and views for cursor adapter
-        String[] data = new String[] {FileDbAdapter.KEY_DISPLAY, FileDbAdapter.KEY_META};
+        // views for the name and the status of each form
         int[] view = new int[] {android.R.id.text1, android.R.id.text2};
 
-        // render total instance view
-        SimpleCursorAdapter instances =
-                new SimpleCursorAdapter(this, android.R.layout.simple_list_item_2, c, data, view);
-        setListAdapter(instances);
-        fda.close();
+        // render forms by name, a page at a time
+        mForms =
+                new FileListAdapter(this, android.R.layout.simple_list_item_2, view,
+                        FileDbAdapter.TYPE_FORM, null, FileDbAdapter.KEY_DISPLAY);
+        setListAdapter(mForms);
+        getListView().setOnScrollListener(mForms);
+
+        // typing narrows the list to forms with matching names
+        getListView().setTextFilterEnabled(true);
+    }
+
+
+    @Override
+    protected void onDestroy() {
+        mForms.closePages();
+        super.onDestroy();
     }
 
 
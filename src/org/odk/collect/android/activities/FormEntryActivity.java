@@ -23,17 +23,20 @@ import org.javarosa.core.model.data.IAnswerData;
 import org.javarosa.form.api.FormEntryCaption;
 import org.javarosa.form.api.FormEntryController;
 import org.javarosa.form.api.FormEntryModel;
-import org.javarosa.model.xform.XFormsModule;
 import org.odk.collect.android.R;
+import org.odk.collect.android.application.Collect;
 import org.odk.collect.android.database.FileDbAdapter;
 import org.odk.collect.android.listeners.FormLoaderListener;
 import org.odk.collect.android.listeners.FormSavedListener;
+import org.odk.collect.android.logic.FormValidator;
 import org.odk.collect.android.logic.GlobalConstants;
-import org.odk.collect.android.logic.PropertyManager;
+import org.odk.collect.android.logic.InstanceExporter;
 import org.odk.collect.android.tasks.FormLoaderTask;
 import org.odk.collect.android.tasks.SaveToDiskTask;
 import org.odk.collect.android.utilities.FileUtils;
 import org.odk.collect.android.utilities.GestureDetector;
+import org.odk.collect.android.utilities.InstanceJournal;
+import org.odk.collect.android.utilities.PhaseTimer;
 import org.odk.collect.android.views.QuestionView;
 
 import android.app.Activity;
@@ -48,6 +51,8 @@ import android.database.Cursor;
 import android.net.Uri;
 import android.os.AsyncTask;
 import android.os.Bundle;
+import android.os.Handler;
+import android.os.SystemClock;
 import android.provider.MediaStore.Images;
 import android.util.Log;
 import android.view.Gravity;
@@ -95,6 +100,10 @@ public class FormEntryActivity extends Activity implements AnimationListener, Fo
     private static final int PROGRESS_DIALOG = 1;
     private static final int SAVING_DIALOG = 2;
 
+    // autosave once changes stop for a while, but don't keep changes unsaved for longer than this
+    private static final long AUTOSAVE_IDLE = 10 * 1000;
+    private static final long AUTOSAVE_MAX = 60 * 1000;
+
     // uncomment when ProgressBar slowdown is fixed.
     // private ProgressBar mProgressBar;
 
@@ -104,6 +113,15 @@ public class FormEntryActivity extends Activity implements AnimationListener, Fo
     private GestureDetector mGestureDetector;
 
     public static FormEntryController mFormEntryController;
+
+    // static like the controller, so it survives rotation along with the answers it records
+    private static InstanceJournal mJournal;
+    private static FormValidator mFormValidator;
+
+    // instances that have never been saved are autosaved while they're edited
+    private static boolean mNewInstance;
+    private static long mUnsavedSince;
+    private static SaveToDiskTask mAutosaveTask;
     public FormEntryModel mFormEntryModel;
 
     private Animation mInAnimation;
@@ -121,6 +139,13 @@ public class FormEntryActivity extends Activity implements AnimationListener, Fo
     private FormLoaderTask mFormLoaderTask;
     private SaveToDiskTask mSaveToDiskTask;
 
+    private final Handler mHandler = new Handler();
+    private final Runnable mAutosave = new Runnable() {
+        public void run() {
+            autosave();
+        }
+    };
+
     enum AnimationType {
         LEFT, RIGHT, FADE
     }
@@ -143,13 +168,6 @@ public class FormEntryActivity extends Activity implements AnimationListener, Fo
         mOutAnimation = null;
         mGestureDetector = new GestureDetector();
 
-        // Load JavaRosa modules. needed to restore forms.
-        new XFormsModule().registerModule();
-
-        // needed to override rms property manager
-        org.javarosa.core.services.PropertyManager.setPropertyManager(new PropertyManager(
-                getApplicationContext()));
-
         Boolean newForm = true;
         if (savedInstanceState != null) {
             if (savedInstanceState.containsKey(FORMPATH)) {
@@ -717,6 +735,10 @@ public class FormEntryActivity extends Activity implements AnimationListener, Fo
                 switch (i) {
                     case DialogInterface.BUTTON1: // yes, repeat
                         mFormEntryController.newRepeat();
+                        if (mJournal != null) {
+                            mJournal.newRepeat(mFormEntryModel.getFormIndex());
+                        }
+                        scheduleAutosave();
                         showNextView();
                         break;
                     case DialogInterface.BUTTON2: // no, no repeat
@@ -773,6 +795,10 @@ public class FormEntryActivity extends Activity implements AnimationListener, Fo
             public void onClick(DialogInterface dialog, int i) {
                 switch (i) {
                     case DialogInterface.BUTTON1: // yes
+                        if (mJournal != null) {
+                            mJournal.deleteRepeat(mFormEntryModel.getFormIndex());
+                        }
+                        scheduleAutosave();
                         FormIndex validIndex = mFormEntryController.deleteRepeat();
                         mFormEntryController.jumpToIndex(validIndex);
                         showPreviousView();
@@ -795,12 +821,64 @@ public class FormEntryActivity extends Activity implements AnimationListener, Fo
     private void saveDataToDisk(boolean markCompleted) {
         mSaveToDiskTask = new SaveToDiskTask();
         mSaveToDiskTask.setFormSavedListener(this);
-        mSaveToDiskTask.setExportVars(mInstancePath, getApplicationContext(), markCompleted);
+        mSaveToDiskTask.setExportVars(mFormPath, mInstancePath, getApplicationContext(),
+                markCompleted);
+        mSaveToDiskTask.setJournal(mJournal);
+        mSaveToDiskTask.setValidator(mFormValidator);
         mSaveToDiskTask.execute();
         showDialog(SAVING_DIALOG);
     }
 
 
+    /**
+     * Autosave a new instance once changes to it stop for {@link #AUTOSAVE_IDLE}, or at most
+     * {@link #AUTOSAVE_MAX} after the first change that hasn't been saved.
+     */
+    private void scheduleAutosave() {
+        if (!mNewInstance) {
+            return;
+        }
+        long now = SystemClock.uptimeMillis();
+        if (mUnsavedSince == 0) {
+            mUnsavedSince = now;
+        }
+        mHandler.removeCallbacks(mAutosave);
+        mHandler.postAtTime(mAutosave, Math.min(now + AUTOSAVE_IDLE, mUnsavedSince
+                + AUTOSAVE_MAX));
+    }
+
+
+    /**
+     * Copy the instance and write the copy in the background, so editing isn't held up. Only
+     * instances that have never been saved are autosaved; a saved instance keeps its changes in
+     * its journal, and its xml has to stay as it was last saved in case the changes are thrown
+     * away.
+     */
+    private void autosave() {
+        mHandler.removeCallbacks(mAutosave);
+        if (mUnsavedSince == 0 || mFormEntryController == null || mInstancePath == null
+                || isFinishing()) {
+            return;
+        }
+        if (mSaveToDiskTask != null && mSaveToDiskTask.getStatus() != AsyncTask.Status.FINISHED) {
+            return;
+        }
+        if (mAutosaveTask != null && mAutosaveTask.getStatus() != AsyncTask.Status.FINISHED) {
+            // the journal can only be rebased onto one copy at a time
+            mHandler.postDelayed(mAutosave, AUTOSAVE_IDLE);
+            return;
+        }
+
+        mUnsavedSince = 0;
+        mAutosaveTask = new SaveToDiskTask();
+        mAutosaveTask.setExportVars(mFormPath, mInstancePath, getApplicationContext(), false);
+        mAutosaveTask.setJournal(mJournal);
+        mAutosaveTask.setSnapshot(new InstanceExporter(mFormEntryController.getModel().getForm()),
+                mJournal == null ? -1 : mJournal.mark());
+        mAutosaveTask.execute();
+    }
+
+
     /**
      * Confirm save and quit dialog
      */
@@ -830,12 +908,17 @@ public class FormEntryActivity extends Activity implements AnimationListener, Fo
             public void onClick(DialogInterface dialog, int i) {
                 switch (i) {
                     case DialogInterface.BUTTON1: // yes
-                        FileDbAdapter fda = new FileDbAdapter(FormEntryActivity.this);
-                        fda.open();
+                        FileDbAdapter fda = Collect.getInstance().getFileDbAdapter();
                         Cursor c = fda.fetchFilesByPath(mInstancePath, null);
-                        if (c != null && c.getCount() > 0) {
+                        if (!mNewInstance && c != null && c.getCount() > 0) {
                             Log.i(t, "prevously saved");
                         } else {
+                            // only autosaved, so it goes too
+                            if (mNewInstance) {
+                                SaveToDiskTask.discardAutosaves();
+                                fda.deleteFile(mInstancePath, null);
+                            }
+
                             // not previously saved, cleaning up
                             String instanceFolder =
                                     mInstancePath.substring(0, mInstancePath.lastIndexOf("/") + 1);
@@ -874,7 +957,10 @@ public class FormEntryActivity extends Activity implements AnimationListener, Fo
                             c.close();
                         }
 
-                        fda.close();
+                        // changes being thrown away mustn't come back on the next resume
+                        if (mJournal != null) {
+                            mJournal.clear(null);
+                        }
                         finish();
                         break;
                     case DialogInterface.BUTTON2: // no
@@ -1016,6 +1102,10 @@ public class FormEntryActivity extends Activity implements AnimationListener, Fo
     protected void onPause() {
         Log.d(t, "onPause");
         dismissDialogs();
+        if (mJournal != null) {
+            mJournal.sync();
+        }
+        autosave();
         super.onPause();
     }
 
@@ -1038,6 +1128,9 @@ public class FormEntryActivity extends Activity implements AnimationListener, Fo
         if (mSaveToDiskTask != null) {
             mSaveToDiskTask.setFormSavedListener(this);
         }
+        if (mUnsavedSince != 0) {
+            mHandler.postDelayed(mAutosave, AUTOSAVE_IDLE);
+        }
         super.onResume();
     }
 
@@ -1082,6 +1175,24 @@ public class FormEntryActivity extends Activity implements AnimationListener, Fo
     protected void onDestroy() {
         if (mFormLoaderTask != null) mFormLoaderTask.setFormLoaderListener(null);
         if (mSaveToDiskTask != null) mSaveToDiskTask.setFormSavedListener(null);
+        mHandler.removeCallbacks(mAutosave);
+
+        // hand the form back so the next session can skip loading it
+        if (isFinishing() && mFormEntryController != null) {
+            Collect.getInstance().getFormDefCache().release(
+                    mFormEntryController.getModel().getForm());
+            mFormEntryController = null;
+        }
+        if (isFinishing() && mJournal != null) {
+            mJournal.close();
+            mJournal = null;
+        }
+        if (isFinishing()) {
+            mFormValidator = null;
+            mNewInstance = false;
+            mUnsavedSince = 0;
+            mAutosaveTask = null;
+        }
         super.onDestroy();
     }
 
@@ -1122,7 +1233,7 @@ public class FormEntryActivity extends Activity implements AnimationListener, Fo
     /**
      * loadingComplete() is called by FormLoaderTask once it has finished loading a form.
      */
-    public void loadingComplete(FormEntryController fec) {
+    public void loadingComplete(FormEntryController fec, PhaseTimer timings) {
         dismissDialog(PROGRESS_DIALOG);
         if (fec == null) {
             createErrorDialog(getString(R.string.load_error, mFormPath.substring(mFormPath
@@ -1130,9 +1241,13 @@ public class FormEntryActivity extends Activity implements AnimationListener, Fo
         } else {
             mFormEntryController = fec;
             mFormEntryModel = fec.getModel();
+            mFormValidator = new FormValidator(fec);
 
             // Set saved answer path
-            if (mInstancePath == null) {
+            boolean newInstance = mInstancePath == null;
+            mNewInstance = newInstance;
+            mUnsavedSince = 0;
+            if (newInstance) {
 
                 // Create new answer folder.
                 String time =
@@ -1145,7 +1260,14 @@ public class FormEntryActivity extends Activity implements AnimationListener, Fo
                 if (FileUtils.createFolder(path)) {
                     mInstancePath = path + "/" + file + "_" + time + ".xml";
                 }
-            } else {
+            }
+            if (mInstancePath != null) {
+                // the loader hashed both files, so they aren't read again here
+                mJournal =
+                        new InstanceJournal(new File(mInstancePath), mFormLoaderTask.getFormHash(),
+                                mFormLoaderTask.getInstanceHash());
+            }
+            if (!newInstance) {
                 // we've just loaded a saved form, so start in the hierarchy
                 // view
                 Intent i = new Intent(this, FormHierarchyActivity.class);
@@ -1159,7 +1281,7 @@ public class FormEntryActivity extends Activity implements AnimationListener, Fo
     }
 
 
-    public void savingComplete(int saveStatus) {
+    public void savingComplete(int saveStatus, PhaseTimer timings) {
         dismissDialog(SAVING_DIALOG);
         switch (saveStatus) {
             case SaveToDiskTask.SAVED:
@@ -1182,12 +1304,19 @@ public class FormEntryActivity extends Activity implements AnimationListener, Fo
 
 
     public int saveAnswer(IAnswerData answer, boolean evaluateConstraints) {
+        int saveStatus = FormEntryController.ANSWER_OK;
         if (evaluateConstraints) {
-            return mFormEntryController.answerQuestion(answer);
+            saveStatus = mFormEntryController.answerQuestion(answer);
         } else {
             mFormEntryController.saveAnswer(mFormEntryModel.getFormIndex(), answer);
-            return FormEntryController.ANSWER_OK;
         }
+        if (saveStatus == FormEntryController.ANSWER_OK) {
+            if (mJournal != null) {
+                mJournal.answer(mFormEntryModel.getFormIndex(), answer);
+            }
+            scheduleAutosave();
+        }
+        return saveStatus;
     }
 
 
@@ -20,6 +20,7 @@ import java.io.File;
 import java.util.regex.Pattern;
 
 import org.odk.collect.android.R;
+import org.odk.collect.android.adapters.FileListAdapter;
 import org.odk.collect.android.database.FileDbAdapter;
 import org.odk.collect.android.logic.GlobalConstants;
 
@@ -29,7 +30,6 @@ import android.database.Cursor;
 import android.os.Bundle;
 import android.view.View;
 import android.widget.ListView;
-import android.widget.SimpleCursorAdapter;
 
 /**
  * Responsible for displaying all the valid instances in the instance directory.
@@ -39,6 +39,9 @@ import android.widget.SimpleCursorAdapter;
  */
 public class InstanceChooserList extends ListActivity {
 
+    private FileListAdapter mInstances;
+
+
     @Override
     public void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
@@ -47,6 +50,13 @@ public class InstanceChooserList extends ListActivity {
     }
 
 
+    @Override
+    protected void onDestroy() {
+        mInstances.closePages();
+        super.onDestroy();
+    }
+
+
     @Override
     protected void onActivityResult(int requestCode, int resultCode, Intent intent) {
         super.onActivityResult(requestCode, resultCode, intent);
@@ -62,10 +72,16 @@ public class InstanceChooserList extends ListActivity {
         Cursor c = (Cursor) getListAdapter().getItem(position);
         String instancePath = c.getString(c.getColumnIndex(FileDbAdapter.KEY_FILEPATH));
 
+        // the form is recorded when the instance is saved, except by older versions
+        String formPath = c.getString(c.getColumnIndex(FileDbAdapter.KEY_FORM_PATH));
+        if (formPath == null) {
+            formPath = getFormPathFromInstancePath(instancePath);
+        }
+
         // create intent for return and store path
         Intent i = new Intent();
         i.putExtra(GlobalConstants.KEY_INSTANCEPATH, instancePath);
-        i.putExtra(GlobalConstants.KEY_FORMPATH, getFormPathFromInstancePath(instancePath));
+        i.putExtra(GlobalConstants.KEY_FORMPATH, formPath);
 
         // return the result to the parent class
         getParent().setResult(RESULT_OK, i);
@@ -84,28 +100,24 @@ public class InstanceChooserList extends ListActivity {
         Intent i = getIntent();
         String status = i.getStringExtra(FileDbAdapter.KEY_STATUS);
 
-        // get all instances that match the status.
-        FileDbAdapter fda = new FileDbAdapter(this);
-        fda.open();
-        Cursor c = fda.fetchFilesByType(FileDbAdapter.TYPE_INSTANCE, status);
-        startManagingCursor(c);
-
-        // create data and views for cursor adapter
-        String[] data = new String[] {FileDbAdapter.KEY_DISPLAY, FileDbAdapter.KEY_META};
+        // views for the name and the status of each instance
         int[] view = new int[] {android.R.id.text1, android.R.id.text2};
 
-        // render total instance view
-        SimpleCursorAdapter instances =
-                new SimpleCursorAdapter(this, android.R.layout.simple_list_item_2, c, data, view);
-        setListAdapter(instances);
+        // render instances that match the status, newest first, a page at a time
+        mInstances =
+                new FileListAdapter(this, android.R.layout.simple_list_item_2, view,
+                        FileDbAdapter.TYPE_INSTANCE, status, FileDbAdapter.KEY_MODIFIED);
+        setListAdapter(mInstances);
+        getListView().setOnScrollListener(mInstances);
 
-        // cleanup
-        fda.close();
+        // typing narrows the list to instances with matching names or key answers
+        getListView().setTextFilterEnabled(true);
     }
 
 
     /**
-     * Given an instance path, return the full path to the form
+     * Given an instance path, return the full path to the form. Only needed for instances last
+     * saved before the form path was recorded.
      * 
      * @param instancePath full path to the instance
      * @return formPath full path to the form the instance was generated from
@@ -17,6 +17,7 @@
 package org.odk.collect.android.activities;
 
 import org.odk.collect.android.R;
+import org.odk.collect.android.application.Collect;
 import org.odk.collect.android.database.FileDbAdapter;
 import org.odk.collect.android.logic.GlobalConstants;
 
@@ -104,23 +105,26 @@ public class InstanceChooserTabs extends TabActivity {
      * Update count of saved and completed instances for tab host header.
      */
     private void updateTabHostCount() {
-        // create file adapter
-        FileDbAdapter fda = new FileDbAdapter(this);
-        fda.open();
-
-        // get saved instances
-        Cursor c =
-                fda.fetchFilesByType(FileDbAdapter.TYPE_INSTANCE, FileDbAdapter.STATUS_INCOMPLETE);
-        mSavedCount = c.getCount();
-        c.close();
-
-        // get completed instances
-        c = fda.fetchFilesByType(FileDbAdapter.TYPE_INSTANCE, FileDbAdapter.STATUS_COMPLETE);
-        mCompletedCount = c.getCount();
+        mSavedCount = 0;
+        mCompletedCount = 0;
+
+        // one row for each type and status, so no instances are counted here
+        Cursor c = Collect.getInstance().getFileDbAdapter().fetchCounts();
+        int typeColumn = c.getColumnIndex(FileDbAdapter.KEY_TYPE);
+        int statusColumn = c.getColumnIndex(FileDbAdapter.KEY_STATUS);
+        int countColumn = c.getColumnIndex(FileDbAdapter.KEY_COUNT);
+        while (c.moveToNext()) {
+            if (!FileDbAdapter.TYPE_INSTANCE.equals(c.getString(typeColumn))) {
+                continue;
+            }
+            String status = c.getString(statusColumn);
+            if (FileDbAdapter.STATUS_INCOMPLETE.equals(status)) {
+                mSavedCount = c.getInt(countColumn);
+            } else if (FileDbAdapter.STATUS_COMPLETE.equals(status)) {
+                mCompletedCount = c.getInt(countColumn);
+            }
+        }
         c.close();
-
-        // memory cleanup
-        fda.close();
     }
 
 
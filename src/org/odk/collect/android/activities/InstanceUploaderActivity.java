@@ -19,6 +19,7 @@ package org.odk.collect.android.activities;
 import java.util.ArrayList;
 
 import org.odk.collect.android.R;
+import org.odk.collect.android.application.Collect;
 import org.odk.collect.android.database.FileDbAdapter;
 import org.odk.collect.android.listeners.InstanceUploaderListener;
 import org.odk.collect.android.logic.GlobalConstants;
@@ -109,13 +110,9 @@ public class InstanceUploaderActivity extends Activity implements InstanceUpload
         in.putExtra(GlobalConstants.KEY_SUCCESS, success);
         setResult(RESULT_OK, in);
 
-        // for each path, update the status
-        FileDbAdapter fda = new FileDbAdapter(this);
-        fda.open();
-        for (int i = 0; i < resultSize; i++) {
-            fda.updateFile(result.get(i), FileDbAdapter.STATUS_SUBMITTED);
-        }
-        fda.close();
+        // update the status of every path at once
+        FileDbAdapter fda = Collect.getInstance().getFileDbAdapter();
+        fda.updateFilesStatus(result, FileDbAdapter.STATUS_SUBMITTED);
         finish();
     }
 
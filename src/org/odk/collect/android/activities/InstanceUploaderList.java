@@ -19,6 +19,8 @@ package org.odk.collect.android.activities;
 import java.util.ArrayList;
 
 import org.odk.collect.android.R;
+import org.odk.collect.android.adapters.FileListAdapter;
+import org.odk.collect.android.application.Collect;
 import org.odk.collect.android.database.FileDbAdapter;
 import org.odk.collect.android.logic.GlobalConstants;
 import org.odk.collect.android.preferences.ServerPreferences;
@@ -26,6 +28,7 @@ import org.odk.collect.android.preferences.ServerPreferences;
 import android.app.ListActivity;
 import android.content.Intent;
 import android.database.Cursor;
+import android.database.DataSetObserver;
 import android.os.Bundle;
 import android.view.Menu;
 import android.view.MenuItem;
@@ -33,7 +36,6 @@ import android.view.View;
 import android.view.View.OnClickListener;
 import android.widget.Button;
 import android.widget.ListView;
-import android.widget.SimpleCursorAdapter;
 import android.widget.Toast;
 
 /**
@@ -49,17 +51,20 @@ public class InstanceUploaderList extends ListActivity {
 	
 	private static final String BUNDLE_SELECTED_ITEMS_KEY = "selected_items";
 	private static final String BUNDLE_TOGGLED_KEY = "toggled";
+    private static final String BUNDLE_SORT_KEY = "sort";
 
     private static final int MENU_PREFERENCES = Menu.FIRST;
+    private static final int MENU_SORT = Menu.FIRST + 1;
     private static final int INSTANCE_UPLOADER = 0;
 
     private Button mActionButton;
     private Button mToggleButton;
 
-    private SimpleCursorAdapter mInstances;
+    private FileListAdapter mInstances;
     private ArrayList<Long> mSelected = new ArrayList<Long>();
     private boolean mRestored = false;
     private boolean mToggled = false;
+    private String mSort = FileDbAdapter.KEY_MODIFIED;
 
 
     @Override
@@ -74,7 +79,7 @@ public class InstanceUploaderList extends ListActivity {
                 if (mSelected.size() > 0) {
                     // items selected
                     uploadSelectedFiles();
-                    refreshData();
+                    clearSelection();
                     mToggled = false;
                 } else {
                     // no items selected
@@ -93,6 +98,10 @@ public class InstanceUploaderList extends ListActivity {
                 mToggled = !mToggled;
                 // remove all items from selected list
                 mSelected.clear();
+                // every instance has to be in the list to be selected
+                if (mToggled) {
+                    mInstances.loadAll();
+                }
                 for (int pos = 0; pos < ls.getCount(); pos++) {
                 	ls.setItemChecked(pos, mToggled);
                 	// add all items if mToggled sets to select all
@@ -111,19 +120,25 @@ public class InstanceUploaderList extends ListActivity {
      * displays each row.
      */
     private void refreshView() {
-        // get all mInstances that match the status.
-        FileDbAdapter fda = new FileDbAdapter(this);
-        fda.open();
-        Cursor c = fda.fetchFilesByType(FileDbAdapter.TYPE_INSTANCE, FileDbAdapter.STATUS_COMPLETE);
-        startManagingCursor(c);
-
-        String[] data = new String[] {FileDbAdapter.KEY_DISPLAY, FileDbAdapter.KEY_META};
         int[] view = new int[] {R.id.text1, R.id.text2};
 
-        // render total instance view
+        // render completed instances a page at a time
+        FileListAdapter old = mInstances;
         mInstances =
-                new SimpleCursorAdapter(this, R.layout.two_item_multiple_choice, c, data, view);
+                new FileListAdapter(this, R.layout.two_item_multiple_choice, view,
+                        FileDbAdapter.TYPE_INSTANCE, FileDbAdapter.STATUS_COMPLETE, mSort);
         setListAdapter(mInstances);
+        getListView().setOnScrollListener(mInstances);
+        mInstances.registerDataSetObserver(new DataSetObserver() {
+            @Override
+            public void onChanged() {
+                checkSelected();
+                mActionButton.setEnabled(!(mInstances.getCount() == 0));
+            }
+        });
+        if (old != null) {
+            old.closePages();
+        }
         getListView().setChoiceMode(ListView.CHOICE_MODE_MULTIPLE);
         getListView().setItemsCanFocus(false);
         mActionButton.setEnabled(!(mInstances.getCount() == 0));
@@ -131,24 +146,27 @@ public class InstanceUploaderList extends ListActivity {
         // set title
         setTitle(getString(R.string.app_name) + " > " + getString(R.string.send_data));
 
-        // cleanup
-        fda.close();
-
         // if current activity is being reinitialized due to changing
         // orientation
         // restore all check marks for ones selected
         if (mRestored) {
-            ListView ls = getListView();
-            for (long id : mSelected) {
-                for (int pos = 0; pos < ls.getCount(); pos++) {
-                    if (id == ls.getItemIdAtPosition(pos)) {
-                        ls.setItemChecked(pos, true);
-                        break;
-                    }
-                }
+            checkSelected();
+            mRestored = false;
+        }
+    }
+
 
+    /**
+     * Check the rows of the selected files wherever they are in the list now. Called whenever the
+     * list reads its files again, since changed files move rows.
+     */
+    private void checkSelected() {
+        ListView ls = getListView();
+        ls.clearChoices();
+        for (int pos = 0; pos < mInstances.getCount(); pos++) {
+            if (mSelected.contains(mInstances.getItemId(pos))) {
+                ls.setItemChecked(pos, true);
             }
-            mRestored = false;
         }
     }
 
@@ -157,8 +175,7 @@ public class InstanceUploaderList extends ListActivity {
         ArrayList<String> selectedInstances = new ArrayList<String>();
 
         // get all checked items
-        FileDbAdapter fda = new FileDbAdapter(this);
-        fda.open();
+        FileDbAdapter fda = Collect.getInstance().getFileDbAdapter();
 
         Cursor c = null;
 
@@ -173,14 +190,16 @@ public class InstanceUploaderList extends ListActivity {
         Intent i = new Intent(this, InstanceUploaderActivity.class);
         i.putExtra(GlobalConstants.KEY_INSTANCES, selectedInstances);
         startActivityForResult(i, INSTANCE_UPLOADER);
-        fda.close();
+    }
+
+
+    private void clearSelection() {
+        mSelected.clear();
+        checkSelected();
     }
 
 
     private void refreshData() {
-        if (mInstances != null) {
-            mInstances.getCursor().requery();
-        }
         if (!mRestored) {
             mSelected.clear();
         }
@@ -193,6 +212,22 @@ public class InstanceUploaderList extends ListActivity {
         super.onCreateOptionsMenu(menu);
         menu.add(0, MENU_PREFERENCES, 0, getString(R.string.server_preferences)).setIcon(
                 android.R.drawable.ic_menu_preferences);
+        menu.add(0, MENU_SORT, 0, getString(R.string.sort_by_name)).setIcon(
+                android.R.drawable.ic_menu_sort_alphabetically);
+        return true;
+    }
+
+
+    @Override
+    public boolean onPrepareOptionsMenu(Menu menu) {
+        super.onPrepareOptionsMenu(menu);
+        if (FileDbAdapter.KEY_MODIFIED.equals(mSort)) {
+            menu.findItem(MENU_SORT).setTitle(getString(R.string.sort_by_name)).setIcon(
+                    android.R.drawable.ic_menu_sort_alphabetically);
+        } else {
+            menu.findItem(MENU_SORT).setTitle(getString(R.string.sort_by_date)).setIcon(
+                    android.R.drawable.ic_menu_sort_by_size);
+        }
         return true;
     }
 
@@ -203,6 +238,15 @@ public class InstanceUploaderList extends ListActivity {
             case MENU_PREFERENCES:
                 createPreferencesMenu();
                 return true;
+            case MENU_SORT:
+                if (FileDbAdapter.KEY_MODIFIED.equals(mSort)) {
+                    mSort = FileDbAdapter.KEY_DISPLAY;
+                } else {
+                    mSort = FileDbAdapter.KEY_MODIFIED;
+                }
+                mToggled = false;
+                refreshData();
+                return true;
         }
         return super.onMenuItemSelected(featureId, item);
     }
@@ -232,11 +276,23 @@ public class InstanceUploaderList extends ListActivity {
 
     @Override
     protected void onResume() {
-        refreshData();
+        // the list follows changes to the instances once it is shown
+        if (mInstances == null) {
+            refreshData();
+        }
         super.onResume();
     }
 
 
+    @Override
+    protected void onDestroy() {
+        if (mInstances != null) {
+            mInstances.closePages();
+        }
+        super.onDestroy();
+    }
+
+
     @Override
     protected void onRestoreInstanceState(Bundle savedInstanceState) {
         super.onRestoreInstanceState(savedInstanceState);
@@ -244,6 +300,7 @@ public class InstanceUploaderList extends ListActivity {
         for (int i = 0; i < selectedArray.length; i++)
             mSelected.add(selectedArray[i]);
         mToggled = savedInstanceState.getBoolean(BUNDLE_TOGGLED_KEY);
+        mSort = savedInstanceState.getString(BUNDLE_SORT_KEY);
         mRestored = true;
     }
 
@@ -256,6 +313,7 @@ public class InstanceUploaderList extends ListActivity {
             selectedArray[i] = mSelected.get(i);
         outState.putLongArray(BUNDLE_SELECTED_ITEMS_KEY, selectedArray);
         outState.putBoolean(BUNDLE_TOGGLED_KEY, mToggled);
+        outState.putString(BUNDLE_SORT_KEY, mSort);
     }
 
 
@@ -268,7 +326,14 @@ public class InstanceUploaderList extends ListActivity {
             // returns with a form path, start entry
             case INSTANCE_UPLOADER:
                 if (intent.getBooleanExtra(GlobalConstants.KEY_SUCCESS, false)) {
-                    refreshData();
+                    // read the instances now rather than when the uploads are announced, to
+                    // know if any are left
+                    if (mInstances == null) {
+                        refreshData();
+                    } else {
+                        mSelected.clear();
+                        mInstances.reload();
+                    }
                     if (mInstances.isEmpty()) {
                         finish();
                     }
@@ -19,18 +19,23 @@ package org.odk.collect.android.activities;
 import java.util.ArrayList;
 
 import org.odk.collect.android.R;
+import org.odk.collect.android.adapters.FileListAdapter;
 import org.odk.collect.android.database.FileDbAdapter;
+import org.odk.collect.android.listeners.DeleteFilesListener;
+import org.odk.collect.android.tasks.DeleteFilesTask;
 
 import android.app.AlertDialog;
+import android.app.Dialog;
 import android.app.ListActivity;
+import android.app.ProgressDialog;
 import android.content.DialogInterface;
 import android.database.Cursor;
+import android.database.DataSetObserver;
 import android.os.Bundle;
 import android.view.View;
 import android.view.View.OnClickListener;
 import android.widget.Button;
 import android.widget.ListView;
-import android.widget.SimpleCursorAdapter;
 import android.widget.Toast;
 
 /**
@@ -40,12 +45,16 @@ import android.widget.Toast;
  * @author Carl Hartung (carlhartung@gmail.com)
  * @author Yaw Anokwa (yanokwa@gmail.com)
  */
-public class LocalFileManagerList extends ListActivity {
+public class LocalFileManagerList extends ListActivity implements DeleteFilesListener {
+
+    private static final int PROGRESS_DIALOG = 1;
 
     private AlertDialog mAlertDialog;
+    private ProgressDialog mProgressDialog;
     private Button mActionButton;
+    private DeleteFilesTask mDeleteFilesTask;
 
-    private SimpleCursorAdapter mInstances;
+    private FileListAdapter mInstances;
     private ArrayList<Long> mSelected = new ArrayList<Long>();
     private boolean mRestored = false;
 
@@ -54,6 +63,9 @@ public class LocalFileManagerList extends ListActivity {
     public void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
         setContentView(R.layout.local_file_manage_list);
+
+        // a delete still running when the screen rotated
+        mDeleteFilesTask = (DeleteFilesTask) getLastNonConfigurationInstance();
         mActionButton = (Button) findViewById(R.id.delete_button);
         mActionButton.setOnClickListener(new OnClickListener() {
             public void onClick(View v) {
@@ -71,42 +83,50 @@ public class LocalFileManagerList extends ListActivity {
 
 
     private void refreshView() {
-        // get all mInstances that match the status.
-        FileDbAdapter fda = new FileDbAdapter(this);
-        fda.open();
-        fda.addOrphanForms();
-        Cursor c = fda.fetchAllFiles();
-        startManagingCursor(c);
-
-        String[] data = new String[] {FileDbAdapter.KEY_DISPLAY, FileDbAdapter.KEY_META};
         int[] view = new int[] {R.id.text1, R.id.text2};
 
-        // render total instance view
+        // render every form and instance, newest first, a page at a time
+        FileListAdapter old = mInstances;
         mInstances =
-                new SimpleCursorAdapter(this, R.layout.two_item_multiple_choice, c, data, view);
+                new FileListAdapter(this, R.layout.two_item_multiple_choice, view, null, null,
+                        FileDbAdapter.KEY_MODIFIED);
         setListAdapter(mInstances);
+        getListView().setOnScrollListener(mInstances);
+        mInstances.registerDataSetObserver(new DataSetObserver() {
+            @Override
+            public void onChanged() {
+                checkSelected();
+                mActionButton.setEnabled(!(mInstances.getCount() == 0));
+            }
+        });
+        if (old != null) {
+            old.closePages();
+        }
         getListView().setChoiceMode(ListView.CHOICE_MODE_MULTIPLE);
         getListView().setItemsCanFocus(false);
         mActionButton.setEnabled(!(mInstances.getCount() == 0));
 
-        // cleanup
-        fda.close();
-
         // if current activity is being reinitialized due to changing
         // orientation
         // restore all check marks for ones selected
         if (mRestored) {
-            ListView ls = getListView();
-            for (long id : mSelected) {
-                for (int pos = 0; pos < ls.getCount(); pos++) {
-                    if (id == ls.getItemIdAtPosition(pos)) {
-                        ls.setItemChecked(pos, true);
-                        break;
-                    }
-                }
+            checkSelected();
+            mRestored = false;
+        }
+    }
+
 
+    /**
+     * Check the rows of the selected files wherever they are in the list now. Called whenever the
+     * list reads its files again, since changed files move rows.
+     */
+    private void checkSelected() {
+        ListView ls = getListView();
+        ls.clearChoices();
+        for (int pos = 0; pos < mInstances.getCount(); pos++) {
+            if (mSelected.contains(mInstances.getItemId(pos))) {
+                ls.setItemChecked(pos, true);
             }
-            mRestored = false;
         }
     }
 
@@ -124,7 +144,6 @@ public class LocalFileManagerList extends ListActivity {
                         switch (i) {
                             case DialogInterface.BUTTON1: // delete and
                                 deleteSelectedFiles();
-                                refreshData();
                                 break;
                             case DialogInterface.BUTTON2: // do nothing
                                 break;
@@ -140,9 +159,6 @@ public class LocalFileManagerList extends ListActivity {
 
 
     private void refreshData() {
-        if (mInstances != null) {
-            mInstances.getCursor().requery();
-        }
         if (!mRestored) {
             mSelected.clear();
         }
@@ -151,31 +167,33 @@ public class LocalFileManagerList extends ListActivity {
 
 
     /**
-     * Deletes the selected files.First from the database then from the file
+     * Deletes the selected files in the background. First from the database then from the file
      * system
      */
     private void deleteSelectedFiles() {
-        FileDbAdapter fda = new FileDbAdapter(this);
-        fda.open();
-
-        // delete removes the file from the database first
-        int deleted = 0;
-        for (int i = 0; i < mSelected.size(); i++) {
-            if (fda.deleteFile(mSelected.get(i))) {
-                deleted++;
-            }
-        }
+        showDialog(PROGRESS_DIALOG);
+        mDeleteFilesTask = new DeleteFilesTask();
+        mDeleteFilesTask.setDeleteListener(this);
+        mDeleteFilesTask.execute(mSelected.toArray(new Long[mSelected.size()]));
+    }
+
+
+    public void progressUpdate(int progress, int total) {
+        mProgressDialog.setMessage("Deleting " + progress + " of " + total + " item(s)");
+    }
 
-        // remove the actual files and close db
-        fda.removeOrphanForms();
-        fda.removeOrphanInstances();
-        fda.close();
+
+    public void deleteComplete(int deleted) {
+        mDeleteFilesTask = null;
+        dismissDialog(PROGRESS_DIALOG);
 
         if (deleted > 0) {
             // all deletes were successful
             Toast.makeText(getApplicationContext(), getString(R.string.file_deleted_ok, deleted),
                     Toast.LENGTH_SHORT).show();
-            refreshData();
+            // read the files now rather than when the delete is announced, to know if any are left
+            mSelected.clear();
+            mInstances.reload();
             if (mInstances.isEmpty()) {
                 finish();
             }
@@ -185,8 +203,31 @@ public class LocalFileManagerList extends ListActivity {
                     getApplicationContext(),
                     getString(R.string.file_deleted_error, mSelected.size() - deleted + " of "
                             + mSelected.size()), Toast.LENGTH_LONG).show();
+            mSelected.clear();
+            checkSelected();
         }
+    }
+
+
+    @Override
+    protected Dialog onCreateDialog(int id) {
+        switch (id) {
+            case PROGRESS_DIALOG:
+                mProgressDialog = new ProgressDialog(this);
+                mProgressDialog.setTitle(getString(R.string.delete_file));
+                mProgressDialog.setMessage(getString(R.string.please_wait));
+                mProgressDialog.setIndeterminate(true);
+                mProgressDialog.setProgressStyle(ProgressDialog.STYLE_SPINNER);
+                mProgressDialog.setCancelable(false);
+                return mProgressDialog;
+        }
+        return null;
+    }
+
 
+    @Override
+    public Object onRetainNonConfigurationInstance() {
+        return mDeleteFilesTask;
     }
 
 
@@ -211,14 +252,32 @@ public class LocalFileManagerList extends ListActivity {
         if (mAlertDialog != null && mAlertDialog.isShowing()) {
             mAlertDialog.dismiss();
         }
+        if (mDeleteFilesTask != null) {
+            mDeleteFilesTask.setDeleteListener(null);
+        }
         super.onPause();
     }
 
 
+    @Override
+    protected void onDestroy() {
+        if (mInstances != null) {
+            mInstances.closePages();
+        }
+        super.onDestroy();
+    }
+
+
     @Override
     protected void onResume() {
-        // update the list (for returning from the remote manager)
-        refreshData();
+        // the list follows changes to the files once it is shown, including downloads from the
+        // remote manager
+        if (mInstances == null) {
+            refreshData();
+        }
+        if (mDeleteFilesTask != null) {
+            mDeleteFilesTask.setDeleteListener(this);
+        }
         super.onResume();
     }
 
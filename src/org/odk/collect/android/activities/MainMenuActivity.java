@@ -19,7 +19,10 @@ package org.odk.collect.android.activities;
 import java.util.ArrayList;
 
 import org.odk.collect.android.R;
+import org.odk.collect.android.application.Collect;
 import org.odk.collect.android.database.FileDbAdapter;
+import org.odk.collect.android.listeners.FileReconcilerListener;
+import org.odk.collect.android.listeners.FormPrecompilerListener;
 import org.odk.collect.android.logic.GlobalConstants;
 import org.odk.collect.android.preferences.ServerPreferences;
 import org.odk.collect.android.utilities.FileUtils;
@@ -42,7 +45,8 @@ import android.widget.Toast;
  * @author Carl Hartung (carlhartung@gmail.com)
  * @author Yaw Anokwa (yanokwa@gmail.com)
  */
-public class MainMenuActivity extends Activity {
+public class MainMenuActivity extends Activity implements FormPrecompilerListener,
+        FileReconcilerListener {
 
     // request codes for returning chosen form to main menu.
     private static final int FORM_CHOOSER = 0;
@@ -51,6 +55,7 @@ public class MainMenuActivity extends Activity {
 
     // menu options
     private static final int MENU_PREFERENCES = Menu.FIRST;
+    private static final int MENU_TIMINGS = Menu.FIRST + 1;
 
     // buttons
     private Button mEnterDataButton;
@@ -146,10 +151,46 @@ public class MainMenuActivity extends Activity {
     @Override
     protected void onResume() {
         super.onResume();
+        Collect.getInstance().getFormPrecompiler().setFormPrecompilerListener(this);
+        Collect.getInstance().getFileReconciler().setFileReconcilerListener(this);
         refreshView();
     }
 
 
+    /*
+     * (non-Javadoc)
+     * 
+     * @see android.app.Activity#onPause()
+     */
+    @Override
+    protected void onPause() {
+        Collect.getInstance().getFormPrecompiler().setFormPrecompilerListener(null);
+        Collect.getInstance().getFileReconciler().setFileReconcilerListener(null);
+        super.onPause();
+    }
+
+
+    public void formCompiled(String formPath, long millis) {
+        // recorded in the timing log by the precompiler
+    }
+
+
+    public void filesChanged() {
+        refreshView();
+    }
+
+
+    /**
+     * Let the user know about a broken form before they try to fill it in. The form is also
+     * marked as broken in the form list.
+     */
+    public void formCompileFailed(String formPath) {
+        String name = formPath.substring(formPath.lastIndexOf('/') + 1);
+        Toast.makeText(getApplicationContext(), getString(R.string.compile_error, name),
+                Toast.LENGTH_LONG).show();
+    }
+
+
 
     /**
      * Upon return, check intent for data needed to launch other activities.
@@ -186,16 +227,6 @@ public class MainMenuActivity extends Activity {
     }
 
 
-    @Override
-    protected void onSaveInstanceState(Bundle outState) {
-        super.onSaveInstanceState(outState);
-        FileDbAdapter fda = new FileDbAdapter(this);
-        fda.open();
-        fda.removeOrphanFormDefs();
-        fda.close();
-    }
-
-
     private void refreshView() {
         updateButtonCount();
     }
@@ -205,42 +236,35 @@ public class MainMenuActivity extends Activity {
      * Updates the button count and sets the text in the buttons.
      */
     private void updateButtonCount() {
-        // create adapter
-        FileDbAdapter fda = new FileDbAdapter(this);
-        fda.open();
-
-        // count for saved instances
-        Cursor c =
-                fda.fetchFilesByType(FileDbAdapter.TYPE_INSTANCE, FileDbAdapter.STATUS_INCOMPLETE);
-        mSavedCount = c.getCount();
-        c.close();
-
-        // count for completed instances
-        c = fda.fetchFilesByType(FileDbAdapter.TYPE_INSTANCE, FileDbAdapter.STATUS_COMPLETE);
-        mCompletedCount = c.getCount();
-        c.close();
-
-        // count for downloaded forms
-        ArrayList<String> forms = FileUtils.getFilesAsArrayList(GlobalConstants.FORMS_PATH);
-        if (forms != null) {
-            mFormsCount = forms.size();
-        } else {
-            mFormsCount = 0;
+        mSavedCount = 0;
+        mCompletedCount = 0;
+        mAvailableCount = 0;
+
+        // one row for each type and status, so no files are counted here
+        Cursor c = Collect.getInstance().getFileDbAdapter().fetchCounts();
+        int typeColumn = c.getColumnIndex(FileDbAdapter.KEY_TYPE);
+        int statusColumn = c.getColumnIndex(FileDbAdapter.KEY_STATUS);
+        int countColumn = c.getColumnIndex(FileDbAdapter.KEY_COUNT);
+        while (c.moveToNext()) {
+            String type = c.getString(typeColumn);
+            String status = c.getString(statusColumn);
+            int count = c.getInt(countColumn);
+            if (FileDbAdapter.TYPE_INSTANCE.equals(type)) {
+                if (FileDbAdapter.STATUS_INCOMPLETE.equals(status)) {
+                    mSavedCount = count;
+                } else if (FileDbAdapter.STATUS_COMPLETE.equals(status)) {
+                    mCompletedCount = count;
+                }
+            } else if (FileDbAdapter.TYPE_FORM.equals(type)) {
+                // broken forms are still in the form list, tagged as broken
+                mAvailableCount += count;
+            }
         }
-
-        // count for available forms
-        c = fda.fetchFilesByType(FileDbAdapter.TYPE_FORM, FileDbAdapter.STATUS_AVAILABLE);
-        mAvailableCount = c.getCount();
         c.close();
-        fda.close();
-
-        // update button text
-        if (mAvailableCount == mFormsCount) {
-            mEnterDataButton.setText(getString(R.string.enter_data_button, mAvailableCount));
-        } else {
-            mEnterDataButton.setText(getString(R.string.enter_data));
-        }
 
+        // update button text. the file reconciler keeps the forms in the database in step with
+        // the forms folder, and calls filesChanged when they differ
+        mEnterDataButton.setText(getString(R.string.enter_data_button, mAvailableCount));
         mManageFilesButton.setText(getString(R.string.manage_files));
         mSendDataButton.setText(getString(R.string.send_data_button, mCompletedCount));
         mReviewDataButton.setText(getString(R.string.review_data_button, mSavedCount
@@ -259,6 +283,8 @@ public class MainMenuActivity extends Activity {
         super.onCreateOptionsMenu(menu);
         menu.add(0, MENU_PREFERENCES, 0, getString(R.string.server_preferences)).setIcon(
                 android.R.drawable.ic_menu_preferences);
+        menu.add(0, MENU_TIMINGS, 0, getString(R.string.timings)).setIcon(
+                android.R.drawable.ic_menu_recent_history);
         return true;
     }
 
@@ -269,6 +295,9 @@ public class MainMenuActivity extends Activity {
             case MENU_PREFERENCES:
                 createPreferencesMenu();
                 return true;
+            case MENU_TIMINGS:
+                startActivity(new Intent(this, TimingsList.class));
+                return true;
         }
         return super.onOptionsItemSelected(item);
     }
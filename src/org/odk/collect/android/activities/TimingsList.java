@@ -0,0 +1,136 @@
+/*
+ * Copyright (C) 2009 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.odk.collect.android.activities;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+
+import org.odk.collect.android.R;
+import org.odk.collect.android.utilities.TimingLog;
+
+import android.app.ListActivity;
+import android.os.AsyncTask;
+import android.os.Bundle;
+import android.view.Menu;
+import android.view.MenuItem;
+import android.widget.SimpleAdapter;
+
+/**
+ * Debug screen listing load and save times per form and phase from the {@link TimingLog}, so
+ * slow forms and slow phases can be found on the device. The log grows with every load and
+ * save, so it is read and summarized in the background.
+ *
+ * @author Carl Hartung (carlhartung@gmail.com)
+ */
+public class TimingsList extends ListActivity {
+
+    private static final String KEY_TITLE = "title";
+    private static final String KEY_DETAIL = "detail";
+
+    private static final int MENU_CLEAR = Menu.FIRST;
+
+    private StatsLoaderTask mStatsLoaderTask;
+
+    /**
+     * Reads the timing log, clearing it first if asked to, and shows what it read.
+     */
+    private class StatsLoaderTask extends AsyncTask<Boolean, Void, ArrayList<TimingLog.Stats>> {
+        @Override
+        protected ArrayList<TimingLog.Stats> doInBackground(Boolean... clear) {
+            if (clear[0].booleanValue()) {
+                TimingLog.clear();
+            }
+            return TimingLog.getStats();
+        }
+
+
+        @Override
+        protected void onPostExecute(ArrayList<TimingLog.Stats> stats) {
+            if (stats != null && !isCancelled()) {
+                refreshView(stats);
+            }
+        }
+    }
+
+
+    @Override
+    public void onCreate(Bundle savedInstanceState) {
+        super.onCreate(savedInstanceState);
+        setContentView(R.layout.chooser_list_layout);
+        setTitle(getString(R.string.app_name) + " > " + getString(R.string.timings));
+        loadStats(false);
+    }
+
+
+    private void loadStats(boolean clear) {
+        if (mStatsLoaderTask != null) {
+            mStatsLoaderTask.cancel(false);
+        }
+        mStatsLoaderTask = new StatsLoaderTask();
+        mStatsLoaderTask.execute(Boolean.valueOf(clear));
+    }
+
+
+    /**
+     * Insert the summary of the timing log into view.
+     */
+    private void refreshView(ArrayList<TimingLog.Stats> stats) {
+        ArrayList<HashMap<String, String>> rows = new ArrayList<HashMap<String, String>>();
+        for (TimingLog.Stats s : stats) {
+            HashMap<String, String> row = new HashMap<String, String>();
+            row.put(KEY_TITLE, getString(R.string.timing_title, s.operation, s.formName, s.phase));
+            row.put(KEY_DETAIL, getString(R.string.timing_detail, s.p50, s.p90, s.max,
+                    s.bytesP50 / 1024, s.count));
+            rows.add(row);
+        }
+
+        String[] data = new String[] {KEY_TITLE, KEY_DETAIL};
+        int[] view = new int[] {android.R.id.text1, android.R.id.text2};
+        setListAdapter(new SimpleAdapter(this, rows, android.R.layout.simple_list_item_2, data,
+                view));
+    }
+
+
+    @Override
+    public boolean onCreateOptionsMenu(Menu menu) {
+        super.onCreateOptionsMenu(menu);
+        menu.add(0, MENU_CLEAR, 0, getString(R.string.clear_timings)).setIcon(
+                android.R.drawable.ic_menu_delete);
+        return true;
+    }
+
+
+    @Override
+    public boolean onOptionsItemSelected(MenuItem item) {
+        switch (item.getItemId()) {
+            case MENU_CLEAR:
+                loadStats(true);
+                return true;
+        }
+        return super.onOptionsItemSelected(item);
+    }
+
+
+    @Override
+    protected void onDestroy() {
+        if (mStatsLoaderTask != null) {
+            mStatsLoaderTask.cancel(false);
+        }
+        super.onDestroy();
+    }
+
+}
@@ -0,0 +1,336 @@
+/*
+ * Copyright (C) 2009 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.odk.collect.android.adapters;
+
+import java.text.SimpleDateFormat;
+import java.util.Date;
+
+import org.odk.collect.android.database.FileDbAdapter;
+import org.odk.collect.android.database.FileProvider;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.MergeCursor;
+import android.net.Uri;
+import android.os.Handler;
+import android.view.View;
+import android.widget.AbsListView;
+import android.widget.AbsListView.OnScrollListener;
+import android.widget.SimpleCursorAdapter;
+import android.widget.TextView;
+
+/**
+ * Shows files from the {@link FileProvider} a page at a time. The next page is read when the list
+ * is scrolled near the end of the rows already read, so opening a list costs one page however
+ * many files there are. The second line of each row is formatted from the file's status and date
+ * as the row is shown.
+ * <p>
+ * The list reads its files again when the provider says they changed, as far down as it had
+ * read, so it stays current without being queried again each time it is shown.
+ * <p>
+ * Text typed into a list with its text filter enabled narrows it to the files whose names or key
+ * answers start with the words typed.
+ * <p>
+ * Set the adapter as the list's {@link OnScrollListener}, and call {@link #closePages()} when the
+ * list is done with it.
+ *
+ * @author Carl Hartung (carlhartung@gmail.com)
+ */
+public class FileListAdapter extends SimpleCursorAdapter implements SimpleCursorAdapter.ViewBinder,
+        OnScrollListener {
+
+    public static final int PAGE_SIZE = 100;
+
+    private static final String[] FROM = {FileDbAdapter.KEY_DISPLAY, FileDbAdapter.KEY_MODIFIED};
+
+    private static final String added = "Added";
+    private static final String saved = "Saved";
+    private static final String submitted = "Submitted";
+    private static final String broken = "Cannot be read, added";
+
+    private final ContentResolver mResolver;
+    private final String mType;
+    private final String mStatus;
+    private final String mSort;
+
+    private final int mIdColumn;
+    private final int mSortColumn;
+    private final int mStatusColumn;
+    private final int mModifiedColumn;
+    private final int mQuestionsColumn;
+    private final int mAnsweredColumn;
+    private final int mAttachmentsColumn;
+
+    private boolean mLoading;
+    private boolean mClosed;
+
+    private final Handler mHandler = new Handler();
+    private final Runnable mReloader = new Runnable() {
+        public void run() {
+            if (!mClosed) {
+                reload();
+            }
+        }
+    };
+
+    private final SimpleDateFormat mDateFormat =
+            new SimpleDateFormat(FileDbAdapter.META_DATE_FORMAT);
+    private final Date mDate = new Date();
+
+    /**
+     * Pages read so far shown as one cursor. Closing it does nothing, since its pages are shown
+     * again with the next page when it is read.
+     */
+    private static class PageCursor extends MergeCursor {
+        final Cursor[] pages;
+        final String search;
+        final boolean complete;
+
+
+        PageCursor(Cursor[] pages, String search, boolean complete) {
+            super(pages);
+            this.pages = pages;
+            this.search = search;
+            this.complete = complete;
+        }
+
+
+        @Override
+        public void close() {
+        }
+
+
+        void closePages() {
+            super.close();
+        }
+    }
+
+
+    /**
+     * @param type type of the files, or null for every type
+     * @param status status of the files, or null for every status
+     * @param sort {@link FileDbAdapter#KEY_MODIFIED} for newest first or
+     *            {@link FileDbAdapter#KEY_DISPLAY} for by name
+     */
+    public FileListAdapter(Context context, int layout, int[] to, String type, String status,
+            String sort) {
+        super(context, layout, firstPages(context.getContentResolver(), type, status, null, sort,
+                PAGE_SIZE), FROM, to);
+        mResolver = context.getContentResolver();
+        mType = type;
+        mStatus = status;
+        mSort = sort;
+
+        Cursor c = getCursor();
+        mIdColumn = c.getColumnIndex(FileDbAdapter.KEY_ID);
+        mSortColumn = c.getColumnIndex(sort);
+        mStatusColumn = c.getColumnIndex(FileDbAdapter.KEY_STATUS);
+        mModifiedColumn = c.getColumnIndex(FileDbAdapter.KEY_MODIFIED);
+        mQuestionsColumn = c.getColumnIndex(FileDbAdapter.KEY_QUESTIONS);
+        mAnsweredColumn = c.getColumnIndex(FileDbAdapter.KEY_ANSWERED);
+        mAttachmentsColumn = c.getColumnIndex(FileDbAdapter.KEY_ATTACHMENTS);
+        setViewBinder(this);
+    }
+
+
+    private static PageCursor firstPages(ContentResolver resolver, String type, String status,
+            String search, String sort, int limit) {
+        Cursor page = queryPage(resolver, type, status, search, sort, null, 0, limit);
+        return new PageCursor(new Cursor[] {page}, search, page.getCount() < limit);
+    }
+
+
+    private static Cursor queryPage(ContentResolver resolver, String type, String status,
+            String search, String sort, String afterKey, long afterId, int limit) {
+        Uri.Builder builder = FileProvider.getContentUri(type, status).buildUpon();
+        builder.appendQueryParameter(FileProvider.PARAM_SORT, sort);
+        if (search != null) {
+            builder.appendQueryParameter(FileProvider.PARAM_SEARCH, search);
+        }
+        if (afterKey != null) {
+            builder.appendQueryParameter(FileProvider.PARAM_AFTER_KEY, afterKey);
+            builder.appendQueryParameter(FileProvider.PARAM_AFTER_ID, Long.toString(afterId));
+        }
+        builder.appendQueryParameter(FileProvider.PARAM_LIMIT, Integer.toString(limit));
+        return resolver.query(builder.build(), null, null, null, null);
+    }
+
+
+    /**
+     * Read the next page, or every file that is left if limit is 0.
+     */
+    private void loadPages(int limit) {
+        PageCursor current = (PageCursor) getCursor();
+        String afterKey = null;
+        long afterId = 0;
+        if (current.moveToLast()) {
+            afterKey = current.getString(mSortColumn);
+            afterId = current.getLong(mIdColumn);
+        }
+
+        Cursor page =
+                queryPage(mResolver, mType, mStatus, current.search, mSort, afterKey, afterId,
+                        limit);
+        boolean complete = limit == 0 || page.getCount() < limit;
+        Cursor[] pages = current.pages;
+        if (page.getCount() > 0) {
+            pages = new Cursor[current.pages.length + 1];
+            System.arraycopy(current.pages, 0, pages, 0, current.pages.length);
+            pages[current.pages.length] = page;
+        } else {
+            page.close();
+        }
+        changeCursor(new PageCursor(pages, current.search, complete));
+    }
+
+
+    /**
+     * Read every file that hasn't been read yet, for when every row has to be in the list.
+     */
+    public void loadAll() {
+        if (!mClosed && !((PageCursor) getCursor()).complete) {
+            loadPages(0);
+        }
+    }
+
+
+    /**
+     * Read the files again after they have changed, as far down the list as had been read.
+     */
+    public void reload() {
+        mHandler.removeCallbacks(mReloader);
+        PageCursor current = (PageCursor) getCursor();
+        changeCursor(firstPages(mResolver, mType, mStatus, current.search, mSort, Math.max(current
+                .getCount(), PAGE_SIZE)));
+    }
+
+
+    /**
+     * The files shown changed. Read them again once the changes made together have all been
+     * announced, instead of requerying every page.
+     */
+    @Override
+    protected void onContentChanged() {
+        if (!mClosed) {
+            mHandler.removeCallbacks(mReloader);
+            mHandler.post(mReloader);
+        }
+    }
+
+
+    /**
+     * Close the pages of the cursor being replaced, unless the new cursor still shows them.
+     */
+    @Override
+    public void changeCursor(Cursor cursor) {
+        if (mClosed) {
+            // a filter finished after the list was done with the adapter
+            ((PageCursor) cursor).closePages();
+            return;
+        }
+        PageCursor old = (PageCursor) getCursor();
+        super.changeCursor(cursor);
+        if (old != null && old.pages[0] != ((PageCursor) cursor).pages[0]) {
+            old.closePages();
+        }
+    }
+
+
+    public void closePages() {
+        mClosed = true;
+        mHandler.removeCallbacks(mReloader);
+        ((PageCursor) getCursor()).closePages();
+    }
+
+
+    /**
+     * Filter on a background thread, as the list's text filter does.
+     */
+    @Override
+    public Cursor runQueryOnBackgroundThread(CharSequence constraint) {
+        String search = null;
+        if (constraint != null && constraint.toString().trim().length() > 0) {
+            search = constraint.toString();
+        }
+        return firstPages(mResolver, mType, mStatus, search, mSort, PAGE_SIZE);
+    }
+
+
+    /**
+     * Show the status and date of the file, and how far an instance has been filled in, formatted
+     * for the row being shown.
+     */
+    public boolean setViewValue(View view, Cursor cursor, int columnIndex) {
+        if (columnIndex != mModifiedColumn) {
+            return false;
+        }
+
+        String status = cursor.getString(mStatusColumn);
+        String tag = added;
+        if (FileDbAdapter.STATUS_SUBMITTED.equals(status)) {
+            tag = submitted;
+        } else if (FileDbAdapter.STATUS_BROKEN.equals(status)) {
+            tag = broken;
+        } else if (FileDbAdapter.STATUS_COMPLETE.equals(status)
+                || FileDbAdapter.STATUS_INCOMPLETE.equals(status)) {
+            tag = saved;
+        }
+        mDate.setTime(cursor.getLong(mModifiedColumn));
+        StringBuilder text = new StringBuilder();
+        text.append(tag).append(" on ").append(mDateFormat.format(mDate));
+
+        // recorded when an instance is saved
+        int questions = cursor.getInt(mQuestionsColumn);
+        if (questions > 0) {
+            text.append(", ").append(cursor.getInt(mAnsweredColumn)).append(" of ").append(
+                    questions).append(" answered");
+        }
+        int attachments = cursor.getInt(mAttachmentsColumn);
+        if (attachments > 0) {
+            text.append(", ").append(attachments).append(
+                    attachments == 1 ? " attachment" : " attachments");
+        }
+        ((TextView) view).setText(text);
+        return true;
+    }
+
+
+    public void onScroll(AbsListView view, int firstVisibleItem, int visibleItemCount,
+            int totalItemCount) {
+        if (mClosed || ((PageCursor) getCursor()).complete || mLoading
+                || firstVisibleItem + visibleItemCount < totalItemCount - PAGE_SIZE / 4) {
+            return;
+        }
+
+        // the list is in the middle of laying out its rows, so change them afterwards
+        mLoading = true;
+        view.post(new Runnable() {
+            public void run() {
+                mLoading = false;
+                if (!mClosed && !((PageCursor) getCursor()).complete) {
+                    loadPages(PAGE_SIZE);
+                }
+            }
+        });
+    }
+
+
+    public void onScrollStateChanged(AbsListView view, int scrollState) {
+    }
+
+}
@@ -0,0 +1,191 @@
+/*
+ * Copyright (C) 2009 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.odk.collect.android.application;
+
+import java.util.concurrent.CountDownLatch;
+
+import org.javarosa.core.services.PrototypeManager;
+import org.javarosa.model.xform.XFormsModule;
+import org.odk.collect.android.database.FileDbAdapter;
+import org.odk.collect.android.database.FileReconciler;
+import org.odk.collect.android.logic.FormDefCache;
+import org.odk.collect.android.logic.FormPrecompiler;
+import org.odk.collect.android.logic.GlobalConstants;
+import org.odk.collect.android.logic.PropertyManager;
+
+import android.app.Application;
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.content.pm.PackageManager.NameNotFoundException;
+import android.util.Log;
+
+/**
+ * Holds state that outlives a single activity, such as forms that have already been loaded, the
+ * background form compiler, and the file database and what keeps it in step with the sd card.
+ *
+ * @author Carl Hartung (carlhartung@gmail.com)
+ */
+public class Collect extends Application {
+    private final static String t = "Collect";
+
+    private static Collect sInstance;
+
+    private FormDefCache mFormDefCache;
+    private FormPrecompiler mFormPrecompiler;
+    private FileDbAdapter mFileDbAdapter;
+    private FileReconciler mFileReconciler;
+
+    private final CountDownLatch mBootstrapped = new CountDownLatch(1);
+
+    private int mVersionCode = -1;
+
+
+    public static Collect getInstance() {
+        return sInstance;
+    }
+
+
+    @Override
+    public void onCreate() {
+        super.onCreate();
+        sInstance = this;
+
+        // register javarosa services once per process, without holding up the ui
+        new Thread(new Runnable() {
+            public void run() {
+                bootstrap();
+            }
+        }, "Bootstrap").start();
+
+        // keep loaded forms to an eighth of the heap
+        mFormDefCache = new FormDefCache(Runtime.getRuntime().maxMemory() / 8);
+
+        // compile forms that were added while we weren't running
+        mFormPrecompiler = new FormPrecompiler();
+        mFormPrecompiler.compileAll();
+
+        // catch up with files changed while we weren't running, then watch for changes
+        mFileReconciler = new FileReconciler();
+        mFileReconciler.start();
+
+        // the watches die while the sd card is shared over usb, which is how forms are usually
+        // copied onto it, so watch again and catch up whenever it comes back
+        IntentFilter mounted = new IntentFilter(Intent.ACTION_MEDIA_MOUNTED);
+        mounted.addDataScheme("file");
+        registerReceiver(new BroadcastReceiver() {
+            @Override
+            public void onReceive(Context context, Intent intent) {
+                Log.i(t, "Storage mounted, catching up with files");
+                mFileReconciler.start();
+            }
+        }, mounted);
+    }
+
+
+    private void bootstrap() {
+        try {
+            long start = System.currentTimeMillis();
+
+            // Load JavaRosa modules. needed to restore forms.
+            new XFormsModule().registerModule();
+            long modules = System.currentTimeMillis();
+            Log.i(t, "Registered modules in " + (modules - start) + "ms");
+
+            // need a list of classes that formdef uses
+            PrototypeManager.registerPrototypes(GlobalConstants.SERIALIABLE_CLASSES);
+            long prototypes = System.currentTimeMillis();
+            Log.i(t, "Registered prototypes in " + (prototypes - modules) + "ms");
+
+            // needed to override rms property manager
+            org.javarosa.core.services.PropertyManager.setPropertyManager(new PropertyManager(
+                    getApplicationContext()));
+            long properties = System.currentTimeMillis();
+            Log.i(t, "Loaded device properties in " + (properties - prototypes) + "ms");
+        } finally {
+            mBootstrapped.countDown();
+        }
+    }
+
+
+    /**
+     * Block until javarosa modules, prototypes and the property manager are registered. Call
+     * before loading or restoring a form, never from the main thread.
+     */
+    public void waitForBootstrap() {
+        while (true) {
+            try {
+                mBootstrapped.await();
+                return;
+            } catch (InterruptedException e) {
+                // keep waiting, forms can't be read without the prototypes
+            }
+        }
+    }
+
+
+    /**
+     * @return versionCode from the manifest, used to tell which build wrote a cached file
+     */
+    public synchronized int getVersionCode() {
+        if (mVersionCode == -1) {
+            try {
+                mVersionCode = getPackageManager().getPackageInfo(getPackageName(), 0).versionCode;
+            } catch (NameNotFoundException e) {
+                e.printStackTrace();
+                mVersionCode = 0;
+            }
+        }
+        return mVersionCode;
+    }
+
+
+    public FormDefCache getFormDefCache() {
+        return mFormDefCache;
+    }
+
+
+    public FormPrecompiler getFormPrecompiler() {
+        return mFormPrecompiler;
+    }
+
+
+    public FileReconciler getFileReconciler() {
+        return mFileReconciler;
+    }
+
+
+    /**
+     * @return the file database, opened on first use and kept open while the application runs
+     */
+    public synchronized FileDbAdapter getFileDbAdapter() {
+        if (mFileDbAdapter == null) {
+            mFileDbAdapter = new FileDbAdapter(this);
+        }
+        return mFileDbAdapter.open();
+    }
+
+
+    @Override
+    public void onLowMemory() {
+        Log.i(t, "Low memory, dropping cached forms");
+        mFormDefCache.clear();
+        super.onLowMemory();
+    }
+
+}
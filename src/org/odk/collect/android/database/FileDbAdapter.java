@@ -17,29 +17,35 @@
 package org.odk.collect.android.database;
 
 import java.io.File;
-import java.io.FilenameFilter;
+import java.text.ParseException;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Date;
+import java.util.List;
 import java.util.regex.Pattern;
 
 import org.odk.collect.android.R;
-import org.odk.collect.android.logic.GlobalConstants;
 import org.odk.collect.android.utilities.FileUtils;
 
 import android.content.ContentValues;
 import android.content.Context;
+import android.net.Uri;
 import android.database.Cursor;
 import android.database.SQLException;
 import android.database.sqlite.SQLiteConstraintException;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
-import android.net.Uri;
-import android.provider.MediaStore.Images;
+import android.database.sqlite.SQLiteStatement;
 import android.util.Log;
 
 /**
- * Manages the files the application uses.
+ * Manages the files the application uses. One adapter, holding one open connection, is shared
+ * by the whole application through
+ * {@link org.odk.collect.android.application.Collect#getFileDbAdapter()}. SQLiteDatabase locks
+ * around each statement, so the adapter can be used from any thread.
+ * <p>
+ * Every change is announced on the {@link FileProvider} uri of the files it touched, so lists
+ * showing them read them again only when they changed.
  * 
  * @author Yaw Anokwa (yanokwa@gmail.com)
  * @author Carl Hartung (carlhartung@gmail.com)
@@ -56,6 +62,20 @@ public class FileDbAdapter {
     public static final String KEY_STATUS = "status";
     public static final String KEY_DISPLAY = "display";
     public static final String KEY_META = "meta";
+    public static final String KEY_MODIFIED = "modified";
+
+    // instance metadata recorded when an instance is saved
+    public static final String KEY_FORM_PATH = "form_path";
+    public static final String KEY_FORM_HASH = "form_hash";
+    public static final String KEY_ROOT = "root";
+    public static final String KEY_QUESTIONS = "questions";
+    public static final String KEY_ANSWERED = "answered";
+    public static final String KEY_ATTACHMENTS = "attachments";
+    public static final String KEY_ATTACHMENT_BYTES = "attachment_bytes";
+    public static final String KEY_ANSWERS = "answers";
+
+    // columns of the counts table
+    public static final String KEY_COUNT = "count";
 
     // file types
     public static final String TYPE_FORM = "form";
@@ -68,22 +88,97 @@ public class FileDbAdapter {
 
     // status for forms
     public static final String STATUS_AVAILABLE = "available";
+    public static final String STATUS_BROKEN = "broken";
 
-    private static final String added = "Added";
-    private static final String saved = "Saved";
-    private static final String submitted = "Submitted";
+    private static final String[] COLUMNS =
+            {KEY_ID, KEY_FILEPATH, KEY_HASH, KEY_TYPE, KEY_STATUS, KEY_DISPLAY, KEY_MODIFIED,
+                    KEY_FORM_PATH, KEY_FORM_HASH, KEY_ROOT, KEY_QUESTIONS, KEY_ANSWERED,
+                    KEY_ATTACHMENTS, KEY_ATTACHMENT_BYTES, KEY_ANSWERS};
+
+    /**
+     * Format of the dates shown under each file. Version 1 stored them formatted in
+     * {@link #KEY_META}; they are now formatted as the rows are shown.
+     */
+    public static final String META_DATE_FORMAT = "EEE, MMM dd, yyyy 'at' HH:mm";
 
-    private DatabaseHelper mDbHelper;
+    private final DatabaseHelper mDbHelper;
     private SQLiteDatabase mDb;
 
+    // compiled once per connection, used by the batch methods under the adapter's lock
+    private SQLiteStatement mDeleteById;
+    private SQLiteStatement mUpdateStatus;
+    private SQLiteStatement mChanges;
+
+    // whether the full text index could be created
+    private boolean mSearchable;
+
     private static final String DATABASE_CREATE =
             "create table files (_id integer primary key autoincrement, " + "path text not null, "
                     + "hash text not null, " + "type text not null, " + "status text not null, "
                     + "display text not null, " + "meta text not null);";
 
+    // version 2: modified time as a number, and indexes for every lookup
+    private static final String[] DATABASE_UPGRADE_2 = {
+            "alter table files add column modified integer not null default 0;",
+            "delete from files where _id not in (select max(_id) from files group by path);",
+            "create unique index files_path on files (path);",
+            "create index files_hash on files (hash);",
+            "create index files_type_status_modified on files (type, status, modified);"};
+
+    // version 3: number of files of each type and status, kept current by triggers so the main
+    // menu reads it instead of counting rows
+    private static final String[] DATABASE_UPGRADE_3 = {
+            "create table counts (type text not null, status text not null, "
+                    + "count integer not null, primary key (type, status));",
+            "insert into counts select type, status, count(*) from files group by type, status;",
+            "create trigger files_insert after insert on files begin "
+                    + "insert or ignore into counts values (new.type, new.status, 0); "
+                    + "update counts set count = count + 1 "
+                    + "where type = new.type and status = new.status; end;",
+            "create trigger files_delete after delete on files begin "
+                    + "update counts set count = count - 1 "
+                    + "where type = old.type and status = old.status; end;",
+            "create trigger files_update after update of type, status on files begin "
+                    + "update counts set count = count - 1 "
+                    + "where type = old.type and status = old.status; "
+                    + "insert or ignore into counts values (new.type, new.status, 0); "
+                    + "update counts set count = count + 1 "
+                    + "where type = new.type and status = new.status; end;"};
+
+    // version 4: indexes for paging through the lists by name or by date
+    private static final String[] DATABASE_UPGRADE_4 = {
+            "create index files_type_status_display on files (type, status, display);",
+            "create index files_modified on files (modified);",
+            "create index files_display on files (display);"};
+
+    // version 5: full text index of each file's name and key answers, kept by triggers. the
+    // words of an instance are replaced when it is saved
+    private static final String[] DATABASE_UPGRADE_5 = {
+            "create virtual table files_search using fts3(words);",
+            "insert into files_search (docid, words) select _id, display from files;",
+            "create trigger files_search_insert after insert on files begin "
+                    + "insert into files_search (docid, words) values (new._id, new.display); "
+                    + "end;",
+            "create trigger files_search_delete after delete on files begin "
+                    + "delete from files_search where docid = old._id; end;"};
+
+    // version 6: what the lists need to know about an instance, so they never read its xml.
+    // instances saved before have none until they are saved again
+    private static final String[] DATABASE_UPGRADE_6 = {
+            "alter table files add column form_path text;",
+            "alter table files add column form_hash text;",
+            "alter table files add column root text;",
+            "alter table files add column questions integer not null default 0;",
+            "alter table files add column answered integer not null default 0;",
+            "alter table files add column attachments integer not null default 0;",
+            "alter table files add column attachment_bytes integer not null default 0;",
+            "alter table files add column answers text;"};
+
     private static final String DATABASE_NAME = "data";
     private static final String DATABASE_TABLE = "files";
-    private static final int DATABASE_VERSION = 1;
+    private static final String COUNTS_TABLE = "counts";
+    private static final String SEARCH_TABLE = "files_search";
+    private static final int DATABASE_VERSION = 6;
 
     private final Context mCtx;
 
@@ -97,52 +192,123 @@ public class FileDbAdapter {
         @Override
         public void onCreate(SQLiteDatabase db) {
             db.execSQL(DATABASE_CREATE);
+            onUpgrade(db, 1, DATABASE_VERSION);
         }
 
 
+        /**
+         * Upgrade one version at a time, keeping every row. Runs in a transaction.
+         */
         @Override
-        // upgrading will destroy all old data
         public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
-            db.execSQL("DROP TABLE IF EXISTS " + DATABASE_TABLE);
-            onCreate(db);
+            Log.i(t, "Upgrading database from version " + oldVersion + " to " + newVersion);
+            if (oldVersion < 2) {
+                for (String sql : DATABASE_UPGRADE_2) {
+                    db.execSQL(sql);
+                }
+                fillModified(db);
+            }
+            if (oldVersion < 3) {
+                for (String sql : DATABASE_UPGRADE_3) {
+                    db.execSQL(sql);
+                }
+            }
+            if (oldVersion < 4) {
+                for (String sql : DATABASE_UPGRADE_4) {
+                    db.execSQL(sql);
+                }
+            }
+            if (oldVersion < 5) {
+                try {
+                    for (String sql : DATABASE_UPGRADE_5) {
+                        db.execSQL(sql);
+                    }
+                } catch (SQLException e) {
+                    // sqlite on older devices is built without fts3, names are searched instead
+                    Log.w(t, "No full text search: " + e.getMessage());
+                }
+            }
+            if (oldVersion < 6) {
+                for (String sql : DATABASE_UPGRADE_6) {
+                    db.execSQL(sql);
+                }
+            }
+        }
+
+
+        /**
+         * Version 1 only kept the modified time inside the display text, so read it back from
+         * there, or from the file if the text can't be read.
+         */
+        private void fillModified(SQLiteDatabase db) {
+            Cursor c =
+                    db.query(DATABASE_TABLE, new String[] {KEY_ID, KEY_FILEPATH, KEY_META}, null,
+                            null, null, null, null);
+            if (c == null) {
+                return;
+            }
+            SimpleDateFormat format = new SimpleDateFormat(META_DATE_FORMAT);
+            while (c.moveToNext()) {
+                String meta = c.getString(c.getColumnIndex(KEY_META));
+                long modified = 0;
+                try {
+                    modified = format.parse(meta.substring(meta.indexOf(" on ") + 4)).getTime();
+                } catch (ParseException e) {
+                    modified = new File(c.getString(c.getColumnIndex(KEY_FILEPATH))).lastModified();
+                } catch (IndexOutOfBoundsException e) {
+                    modified = new File(c.getString(c.getColumnIndex(KEY_FILEPATH))).lastModified();
+                }
+                ContentValues cv = new ContentValues();
+                cv.put(KEY_MODIFIED, modified);
+                db.update(DATABASE_TABLE, cv, KEY_ID + "=?", new String[] {c.getString(c
+                        .getColumnIndex(KEY_ID))});
+            }
+            c.close();
         }
     }
 
 
+    /**
+     * Use {@link org.odk.collect.android.application.Collect#getFileDbAdapter()} rather than an
+     * adapter of your own.
+     */
     public FileDbAdapter(Context ctx) {
-        this.mCtx = ctx;
+        this.mCtx = ctx.getApplicationContext();
+        this.mDbHelper = new DatabaseHelper(mCtx);
     }
 
 
-    public FileDbAdapter open() throws SQLException {
-        mDbHelper = new DatabaseHelper(mCtx);
-        mDb = mDbHelper.getWritableDatabase();
-        cleanFiles();
+    /**
+     * Open the connection if it isn't open. Files that have gone from the sd card are not
+     * removed here; see {@link #cleanFiles()}.
+     */
+    public synchronized FileDbAdapter open() throws SQLException {
+        if (mDb == null || !mDb.isOpen()) {
+            mDb = mDbHelper.getWritableDatabase();
+            mDeleteById = mDb.compileStatement("delete from " + DATABASE_TABLE + " where " + KEY_ID
+                    + "=?");
+            mUpdateStatus = mDb.compileStatement("update " + DATABASE_TABLE + " set " + KEY_STATUS
+                    + "=?, " + KEY_MODIFIED + "=? where " + KEY_FILEPATH + "=?");
+            mChanges = mDb.compileStatement("select changes()");
+
+            Cursor c =
+                    mDb.query("sqlite_master", new String[] {"name"}, "name=?",
+                            new String[] {SEARCH_TABLE}, null, null, null);
+            mSearchable = c.getCount() > 0;
+            c.close();
+        }
         return this;
     }
 
 
-    public void close() {
+    public synchronized void close() {
+        if (mDb != null) {
+            mDeleteById.close();
+            mUpdateStatus.close();
+            mChanges.close();
+        }
         mDbHelper.close();
-    }
-
-
-    /**
-     * Generate text for the second level of the row display.
-     * 
-     * @param timestamp date modified of the file
-     * @return date modified of the file formatted as human readable string
-     */
-    private String generateMeta(Long timestamp, String status) {
-        String tag = added;
-        if (status.equals(STATUS_SUBMITTED)) {
-            tag = submitted;
-        } else if (status.equals(STATUS_COMPLETE) || status.equals(STATUS_INCOMPLETE)) {
-            tag = saved;
-        }
-        String ts =
-                new SimpleDateFormat("EEE, MMM dd, yyyy 'at' HH:mm").format(new Date(timestamp));
-        return tag + " on " + ts;
+        mDb = null;
     }
 
 
@@ -185,21 +351,34 @@ public class FileDbAdapter {
      * @return id of the new file
      */
     public long createFile(String path, String type, String status) {
+        return createFile(path, type, status, FileUtils.getMd5Hash(new File(path)));
+    }
+
+
+    /**
+     * Insert file into the database.
+     * 
+     * @param path path to the file
+     * @param type type of the file
+     * @param status status of the file
+     * @param hash md5 hash of the file, from whoever just wrote it
+     * @return id of the new file
+     */
+    public long createFile(String path, String type, String status, String hash) {
         File f = new File(path);
         ContentValues cv = new ContentValues();
 
         cv.put(KEY_FILEPATH, f.getAbsolutePath());
         cv.put(KEY_TYPE, type);
         cv.put(KEY_STATUS, status);
-
-        // create md5 hash of the file
-        cv.put(KEY_HASH, FileUtils.getMd5Hash(f));
+        cv.put(KEY_HASH, hash);
 
         // first row of the row display
         cv.put(KEY_DISPLAY, generateDisplay(f.getAbsolutePath(), type));
 
-        // second row of the row display
-        cv.put(KEY_META, generateMeta(f.lastModified(), status));
+        // second row of the row display is formatted from the status and date when shown
+        cv.put(KEY_META, "");
+        cv.put(KEY_MODIFIED, f.lastModified());
 
         long id = -1;
         try {
@@ -208,6 +387,9 @@ public class FileDbAdapter {
             Log.e(t, "Caught SQLiteConstraitException: " + e);
         }
 
+        if (id != -1) {
+            notifyChange(type, status);
+        }
         return id;
     }
 
@@ -219,7 +401,38 @@ public class FileDbAdapter {
      * @return number of affected rows
      */
     public boolean deleteFile(long id) {
-        return mDb.delete(DATABASE_TABLE, KEY_ID + "='" + id + "'", null) > 0;
+        String type = typeOf(KEY_ID + "=?", Long.toString(id));
+        if (mDb.delete(DATABASE_TABLE, KEY_ID + "=?", new String[] {Long.toString(id)}) > 0) {
+            notifyChange(type, null);
+            return true;
+        }
+        return false;
+    }
+
+
+    /**
+     * Remove many files from the database in one transaction.
+     * 
+     * @param ids row ids
+     * @return number of files removed
+     */
+    public synchronized int deleteFiles(List<Long> ids) {
+        int deleted = 0;
+        mDb.beginTransaction();
+        try {
+            for (Long id : ids) {
+                mDeleteById.bindLong(1, id.longValue());
+                mDeleteById.execute();
+                deleted += mChanges.simpleQueryForLong();
+            }
+            mDb.setTransactionSuccessful();
+        } finally {
+            mDb.endTransaction();
+        }
+        if (deleted > 0) {
+            notifyChange(null, null);
+        }
+        return deleted;
     }
 
 
@@ -230,14 +443,38 @@ public class FileDbAdapter {
      * @return number of affected rows
      */
     public boolean deleteFile(String path, String hash) {
+        int deleted;
         if (hash == null) {
-            return mDb.delete(DATABASE_TABLE, KEY_FILEPATH + "='" + path + "'", null) > 0;
+            deleted = mDb.delete(DATABASE_TABLE, KEY_FILEPATH + "=?", new String[] {path});
         } else if (path == null) {
-            return mDb.delete(DATABASE_TABLE, KEY_HASH + "='" + hash + "'", null) > 0;
+            deleted = mDb.delete(DATABASE_TABLE, KEY_HASH + "=?", new String[] {hash});
         } else {
-            return mDb.delete(DATABASE_TABLE, KEY_FILEPATH + "='" + path + "'" + " and " + KEY_HASH
-                    + "='" + hash + "'", null) > 0;
+            deleted =
+                    mDb.delete(DATABASE_TABLE, KEY_FILEPATH + "=? and " + KEY_HASH + "=?",
+                            new String[] {path, hash});
+        }
+        if (deleted > 0) {
+            notifyChange(null, null);
         }
+        return deleted > 0;
+    }
+
+
+    /**
+     * Remove every file in a folder from the database.
+     * 
+     * @param folder absolute path to the folder
+     * @return number of affected rows
+     */
+    public int deleteFilesInFolder(String folder) {
+        // paths between "folder/" and "folder0" start with "folder/", and the range uses the index
+        int deleted =
+                mDb.delete(DATABASE_TABLE, KEY_FILEPATH + ">=? and " + KEY_FILEPATH + "<?",
+                        new String[] {folder + "/", folder + "0"});
+        if (deleted > 0) {
+            notifyChange(null, null);
+        }
+        return deleted;
     }
 
 
@@ -253,41 +490,20 @@ public class FileDbAdapter {
         Cursor c = null;
         if (path == null) {
             // no path given, search using hash
-            c =
-                    mDb.query(true, DATABASE_TABLE, new String[] {KEY_ID, KEY_FILEPATH, KEY_HASH,
-                            KEY_TYPE, KEY_STATUS, KEY_DISPLAY, KEY_META}, KEY_HASH + "='" + hash
-                            + "'", null, null, null, null, null);
+            c = query(KEY_HASH + "=?", new String[] {hash});
         } else if (hash == null) {
             // no hash given, search using path
-            c =
-                    mDb.query(true, DATABASE_TABLE, new String[] {KEY_ID, KEY_FILEPATH, KEY_HASH,
-                            KEY_TYPE, KEY_STATUS, KEY_DISPLAY, KEY_META}, KEY_FILEPATH + "='"
-                            + path + "'", null, null, null, null, null);
+            c = query(KEY_FILEPATH + "=?", new String[] {path});
         } else {
             // search using path and hash
-            c =
-                    mDb.query(true, DATABASE_TABLE, new String[] {KEY_ID, KEY_FILEPATH, KEY_HASH,
-                            KEY_TYPE, KEY_STATUS, KEY_DISPLAY, KEY_META}, KEY_FILEPATH + "='"
-                            + path + "' and " + KEY_HASH + "='" + hash + "'", null, null, null,
-                            null, null);
-        }
-        if (c != null) {
-            c.moveToFirst();
+            c = query(KEY_FILEPATH + "=? and " + KEY_HASH + "=?", new String[] {path, hash});
         }
         return c;
     }
 
 
     public Cursor fetchFile(long id) throws SQLException {
-        Cursor c =
-                mDb.query(true, DATABASE_TABLE, new String[] {KEY_ID, KEY_FILEPATH, KEY_HASH,
-                        KEY_TYPE, KEY_STATUS, KEY_DISPLAY, KEY_META}, KEY_ID + "='" + id + "'",
-                        null, null, null, null, null);
-
-        if (c != null) {
-            c.moveToFirst();
-        }
-        return c;
+        return query(KEY_ID + "=?", new String[] {Long.toString(id)});
     }
 
 
@@ -301,290 +517,332 @@ public class FileDbAdapter {
      * @throws SQLException
      */
     public Cursor fetchFilesByType(String type, String status) throws SQLException {
-        // cleanFiles();
-
         Cursor c = null;
         if (type == null) {
             // no type given, search using status
-            c =
-                    mDb.query(true, DATABASE_TABLE, new String[] {KEY_ID, KEY_FILEPATH, KEY_HASH,
-                            KEY_TYPE, KEY_STATUS, KEY_DISPLAY, KEY_META}, KEY_STATUS + "='"
-                            + status + "'", null, null, null, null, null);
+            c = query(KEY_STATUS + "=?", new String[] {status});
         } else if (status == null) {
             // no status given, search using type
-            c =
-                    mDb.query(true, DATABASE_TABLE, new String[] {KEY_ID, KEY_FILEPATH, KEY_HASH,
-                            KEY_TYPE, KEY_STATUS, KEY_DISPLAY, KEY_META}, KEY_TYPE + "='" + type
-                            + "'", null, null, null, null, null);
+            c = query(KEY_TYPE + "=?", new String[] {type});
         } else {
             // search using type and status
-            c =
-                    mDb.query(true, DATABASE_TABLE, new String[] {KEY_ID, KEY_FILEPATH, KEY_HASH,
-                            KEY_TYPE, KEY_STATUS, KEY_DISPLAY, KEY_META}, KEY_TYPE + "='" + type
-                            + "' and " + KEY_STATUS + "='" + status + "'", null, null, null, null,
-                            null);
-        }
-
-        if (c != null) {
-            c.moveToFirst();
+            c = query(KEY_TYPE + "=? and " + KEY_STATUS + "=?", new String[] {type, status});
         }
         return c;
+    }
+
 
+    /**
+     * Get the number of files of every type and status in one query. The counts are kept by the
+     * database as files are added, changed and removed, so no files are read.
+     * 
+     * @return cursor with {@link #KEY_TYPE}, {@link #KEY_STATUS} and {@link #KEY_COUNT}
+     * @throws SQLException
+     */
+    public Cursor fetchCounts() throws SQLException {
+        return mDb.query(COUNTS_TABLE, new String[] {KEY_TYPE, KEY_STATUS, KEY_COUNT}, null, null,
+                null, null, null);
     }
 
 
-    public Cursor fetchAllFiles() throws SQLException {
-        // cleanFiles();
-        Cursor c = null;
-        c =
-                mDb.query(true, DATABASE_TABLE, new String[] {KEY_ID, KEY_FILEPATH, KEY_HASH,
-                        KEY_TYPE, KEY_STATUS, KEY_DISPLAY, KEY_META}, null, null, null, null, null,
-                        null);
+    /**
+     * Get one page of files, newest first or by name. Each page starts after the last row of the
+     * page before it rather than at an offset, so every page is read straight from an index no
+     * matter how far down the list it is.
+     * 
+     * @param type type of the files, or null for every type
+     * @param status status of the files, or null for every status
+     * @param search words the files' names or key answers start with, or null for every file
+     * @param sort {@link #KEY_MODIFIED} for newest first or {@link #KEY_DISPLAY} for by name
+     * @param afterKey value of the sort column in the last row of the previous page, or null for
+     *            the first page
+     * @param afterId row id of the last row of the previous page
+     * @param limit most rows to return, or 0 for all of them
+     * @return cursor to the files, before the first row
+     * @throws SQLException
+     */
+    public Cursor fetchFilesPage(String type, String status, String search, String sort,
+            String afterKey, long afterId, int limit) throws SQLException {
+        StringBuilder selection = new StringBuilder();
+        ArrayList<String> args = new ArrayList<String>();
+        if (type != null) {
+            selection.append(KEY_TYPE + "=? and ");
+            args.add(type);
+        }
+        if (status != null) {
+            selection.append(KEY_STATUS + "=? and ");
+            args.add(status);
+        }
+        if (search != null) {
+            appendSearch(search, selection, args);
+        }
 
-        if (c != null) {
-            c.moveToFirst();
+        // newest first, or by name. ties are broken by row id so no row is skipped or repeated
+        boolean descending = KEY_MODIFIED.equals(sort);
+        String after = descending ? "<" : ">";
+        String order = descending ? " desc" : "";
+        if (afterKey != null) {
+            selection.append(sort + after + "=? and (" + sort + after + "? or " + KEY_ID + after
+                    + "?) and ");
+            args.add(afterKey);
+            args.add(afterKey);
+            args.add(Long.toString(afterId));
         }
-        return c;
+
+        String where = null;
+        if (selection.length() > 0) {
+            where = selection.substring(0, selection.length() - " and ".length());
+        }
+        return mDb.query(DATABASE_TABLE, COLUMNS, where, args.toArray(new String[args.size()]),
+                null, null, sort + order + ", " + KEY_ID + order, limit > 0 ? Integer
+                        .toString(limit) : null);
     }
 
 
     /**
-     * Update file in the database. Updates the date modified.
+     * Match every word typed against the start of a word in the full text index, or anywhere in
+     * the name if there isn't one.
+     */
+    private void appendSearch(String search, StringBuilder selection, ArrayList<String> args) {
+        StringBuilder match = new StringBuilder();
+        for (String word : search.split("\\s+")) {
+            // the match syntax treats quotes, dashes and stars specially
+            word = word.replaceAll("[^\\p{L}\\p{N}]", "");
+            if (word.length() == 0) {
+                continue;
+            }
+            if (mSearchable) {
+                match.append(word).append("* ");
+            } else {
+                selection.append(KEY_DISPLAY + " like ? and ");
+                args.add("%" + word + "%");
+            }
+        }
+        if (match.length() > 0) {
+            selection.append(KEY_ID + " in (select docid from " + SEARCH_TABLE
+                    + " where words match ?) and ");
+            args.add(match.toString().trim());
+        }
+    }
+
+
+    /**
+     * Record what was found out about an instance when it was saved.
      * 
-     * @param path path to the file
-     * @param status status of the file
-     * @return number of affected rows
+     * @param path path to the instance
+     * @param metadata values for {@link #KEY_FORM_PATH}, {@link #KEY_FORM_HASH},
+     *            {@link #KEY_ROOT}, {@link #KEY_QUESTIONS}, {@link #KEY_ANSWERED},
+     *            {@link #KEY_ATTACHMENTS}, {@link #KEY_ATTACHMENT_BYTES} and {@link #KEY_ANSWERS}
+     * @return true if the instance is in the database
      */
-    public boolean updateFile(String path, String status) {
-        File f = new File(path);
-        ContentValues cv = new ContentValues();
+    public boolean updateMetadata(String path, ContentValues metadata) {
+        if (mDb.update(DATABASE_TABLE, metadata, KEY_FILEPATH + "=?", new String[] {path}) > 0) {
+            notifyChange(typeOf(KEY_FILEPATH + "=?", path), null);
+            return true;
+        }
+        return false;
+    }
 
-        cv.put(KEY_FILEPATH, f.getAbsolutePath());
-        cv.put(KEY_HASH, FileUtils.getMd5Hash(f));
-        cv.put(KEY_STATUS, status);
-        cv.put(KEY_META, generateMeta(new Date().getTime(), status));
 
-        return mDb.update(DATABASE_TABLE, cv, KEY_FILEPATH + "='" + path + "'", null) > 0;
+    /**
+     * Index the key answers of an instance along with its name, replacing the answers indexed
+     * when it was last saved.
+     * 
+     * @param path path to the instance
+     * @param answers answers separated by spaces
+     * @return true if the answers were indexed
+     */
+    public boolean updateSearchWords(String path, String answers) {
+        if (!mSearchable) {
+            return false;
+        }
+        mDb.execSQL("update " + SEARCH_TABLE + " set words = (select " + KEY_DISPLAY + " from "
+                + DATABASE_TABLE + " where " + KEY_FILEPATH + "=?) || ' ' || ? where docid = "
+                + "(select " + KEY_ID + " from " + DATABASE_TABLE + " where " + KEY_FILEPATH
+                + "=?)", new Object[] {path, answers, path});
+        return true;
     }
 
 
     /**
-     * Find orphaned files on the file system
+     * @return type of the file matching the selection, or null if there is none
      */
-    public void cleanFiles() {
+    private String typeOf(String selection, String arg) {
+        String type = null;
         Cursor c =
-                mDb.query(DATABASE_TABLE, new String[] {KEY_ID, KEY_FILEPATH, KEY_HASH, KEY_TYPE,
-                        KEY_STATUS}, null, null, null, null, null);
+                mDb.query(DATABASE_TABLE, new String[] {KEY_TYPE}, selection, new String[] {arg},
+                        null, null, null);
         if (c != null) {
-            while (c.moveToNext()) {
-                String path = c.getString(c.getColumnIndex(KEY_FILEPATH));
-                // String hash = c.getString(c.getColumnIndex(KEY_HASH));
-                // String type = c.getString(c.getColumnIndex(KEY_TYPE));
-
-                File f = new File(path);
-                if (!f.exists()) {
-                    // delete entry for file not on sd
-                    deleteFile(path, null);
-                }
+            if (c.moveToFirst()) {
+                type = c.getString(0);
             }
             c.close();
         }
+        return type;
     }
 
 
+    /**
+     * Tell the lists showing files of the type and status that they changed. Lists of every
+     * status of the type, and of every file, are told as well.
+     * 
+     * @param type type of the files, or null if changes to every type
+     * @param status status of the files, or null if changes to every status
+     */
+    private void notifyChange(String type, String status) {
+        Uri uri = FileProvider.getContentUri(type, status);
+        mCtx.getContentResolver().notifyChange(uri, null);
+    }
 
-    public void removeOrphanFormDefs() {
-        if (FileUtils.createFolder(GlobalConstants.CACHE_PATH)) {
-            ArrayList<String> cachedForms =
-                    FileUtils.getFilesAsArrayList(GlobalConstants.CACHE_PATH);
-
-            Cursor c = null;
-            // remove orphaned form defs
-            if (cachedForms != null) {
-                for (String cachePath : cachedForms) {
 
-                    try {
-                        String hash =
-                                cachePath.substring(cachePath.lastIndexOf("/") + 1, cachePath
-                                        .lastIndexOf("."));
+    public Cursor fetchAllFiles() throws SQLException {
+        return query(null, null);
+    }
 
-                        // if hash is not in db, delete
-                        c = fetchFilesByPath(null, hash);
-                        if (c.getCount() == 0 && !(new File(cachePath)).delete()) {
-                            Log.i(t, "Failed to delete " + cachePath);
-                        }
-                        c.close();
-                    } catch (StringIndexOutOfBoundsException e) {
-                        Log.i(t, "no cached files found");
-                    }
 
-                }
-            }
-            // clean up adapter
-            if (c != null) {
-                c.close();
-            }
+    /**
+     * @return cursor on the first matching file. Selections bind their values, so the statement
+     *         is compiled once and paths with quotes in them work.
+     */
+    private Cursor query(String selection, String[] selectionArgs) {
+        Cursor c = mDb.query(DATABASE_TABLE, COLUMNS, selection, selectionArgs, null, null, null);
+        if (c != null) {
+            c.moveToFirst();
         }
+        return c;
     }
 
 
     /**
-     * Stores new forms in the database
+     * Update file in the database. Updates the date modified.
+     * 
+     * @param path path to the file
+     * @param status status of the file
+     * @return number of affected rows
      */
-    public void addOrphanForms() {
-        // create forms and cache path folder
-        if (FileUtils.createFolder(GlobalConstants.FORMS_PATH)) {
-
-            // full path to the raw xml forms stored on sd card
-            ArrayList<String> storedForms =
-                    FileUtils.getFilesAsArrayList(GlobalConstants.FORMS_PATH);
-
-            String hash = null;
-            String path = null;
-            Cursor c = null;
-
-            // loop through forms on sdcard.
-            if (storedForms != null) {
-                for (String formPath : storedForms) {
-
-                    // hash of raw form
-                    hash = FileUtils.getMd5Hash(new File(formPath));
-
-                    c = fetchFilesByPath(null, hash);
-                    // db has the hash
-                    if (c.getCount() > 0) {
-                        path = c.getString(c.getColumnIndex((FileDbAdapter.KEY_FILEPATH)));
-                        // file path is different, remove file
-                        if (!path.equals(formPath) && !(new File(formPath)).delete()) {
-                            Log.i(t, "Failed to delete " + formPath);
-                        }
-                        c.close();
-                    } else {
-                        // no hash in db, but file path is there.
-                        c = fetchFilesByPath(formPath, null);
-                        if (c.getCount() > 0) {
-                            // delete db entry and hash
-                            deleteFile(c.getLong(c.getColumnIndex((FileDbAdapter.KEY_ID))));
-                        }
-                        c.close();
-
-                        // add this raw form
-                        createFile(formPath, FileDbAdapter.TYPE_FORM,
-                                FileDbAdapter.STATUS_AVAILABLE);
+    public boolean updateFile(String path, String status) {
+        return updateFile(path, status, FileUtils.getMd5Hash(new File(path)));
+    }
 
-                    }
-                }
-            }
 
-            // clean up adapter
-            if (c != null) {
-                c.close();
-            }
-        }
-    }
+    /**
+     * Update file in the database. Updates the date modified.
+     * 
+     * @param path path to the file
+     * @param status status of the file
+     * @param hash md5 hash of the file, from whoever just wrote it
+     * @return number of affected rows
+     */
+    public boolean updateFile(String path, String status, String hash) {
+        File f = new File(path);
+        ContentValues cv = new ContentValues();
 
+        cv.put(KEY_FILEPATH, f.getAbsolutePath());
+        cv.put(KEY_HASH, hash);
+        cv.put(KEY_STATUS, status);
+        cv.put(KEY_MODIFIED, new Date().getTime());
 
-    public void removeOrphanForms() {
-        if (FileUtils.createFolder(GlobalConstants.FORMS_PATH)) {
+        if (mDb.update(DATABASE_TABLE, cv, KEY_FILEPATH + "=?", new String[] {path}) > 0) {
+            // the file may have moved from one status to another
+            notifyChange(typeOf(KEY_FILEPATH + "=?", path), null);
+            return true;
+        }
+        return false;
+    }
 
-            // full path to the raw xml forms stored on sd card
-            ArrayList<String> storedForms =
-                    FileUtils.getFilesAsArrayList(GlobalConstants.FORMS_PATH);
 
-            String hash = null;
-            // String path = null;
-            Cursor c = null;
+    /**
+     * Set the status of a file that itself hasn't changed, keeping its date.
+     * 
+     * @param path path to the file
+     * @param status status of the file
+     * @return true if the status changed
+     */
+    public boolean updateStatus(String path, String status) {
+        String type = typeOf(KEY_FILEPATH + "=?", path);
+        ContentValues cv = new ContentValues();
+        cv.put(KEY_STATUS, status);
+        if (mDb.update(DATABASE_TABLE, cv, KEY_FILEPATH + "=? and " + KEY_STATUS + "<>?",
+                new String[] {path, status}) > 0) {
+            notifyChange(type, null);
+            return true;
+        }
+        return false;
+    }
 
-            // loop through forms on sdcard.
-            if (storedForms != null) {
-                for (String formPath : storedForms) {
 
-                    // hash of raw form
-                    hash = FileUtils.getMd5Hash(new File(formPath));
+    /**
+     * Set the status of many files in one transaction. The files themselves haven't changed, so
+     * they aren't hashed again.
+     * 
+     * @param paths paths to the files
+     * @param status status of the files
+     * @return number of files updated
+     */
+    public synchronized int updateFilesStatus(List<String> paths, String status) {
+        long now = new Date().getTime();
 
-                    c = fetchFilesByPath(null, hash);
-                    // db does not the hash
-                    if (c.getCount() == 0 && !(new File(formPath)).delete()) {
-                        Log.i(t, "Failed to delete " + formPath);
-                    }
-                    c.close();
-                }
-            }
-            // clean up adapter
-            if (c != null) {
-                c.close();
+        int updated = 0;
+        mDb.beginTransaction();
+        try {
+            for (String path : paths) {
+                mUpdateStatus.bindString(1, status);
+                mUpdateStatus.bindLong(2, now);
+                mUpdateStatus.bindString(3, path);
+                mUpdateStatus.execute();
+                updated += mChanges.simpleQueryForLong();
             }
+            mDb.setTransactionSuccessful();
+        } finally {
+            mDb.endTransaction();
         }
+        if (updated > 0) {
+            notifyChange(null, null);
+        }
+        return updated;
     }
 
 
-    public void removeOrphanInstances() {
-        if (FileUtils.createFolder(GlobalConstants.INSTANCES_PATH)) {
-
-            File fo = null;
-            String[] fis = null;
-            Cursor c = null;
-            ArrayList<String> storedInstances =
-                    FileUtils.getFoldersAsArrayList(GlobalConstants.INSTANCES_PATH);
-
-            FilenameFilter ff = new FilenameFilter() {
-                public boolean accept(File dir, String filename) {
-                    return filename.endsWith("xml");
-                }
-            };
-
-            if (storedInstances != null) {
-                for (String instancePath : storedInstances) {
-                    fo = new File(instancePath);
-                    // delete empty folders
-                    if (fo.listFiles().length == 0 && !fo.delete()) {
-                        Log.i(t, "Failed to delete " + instancePath);
-                    }
-                    // find xml file in folder and delete folder
-                    fis = fo.list(ff);
-                    if (fis != null) {
-                        c = fetchFilesByPath(instancePath + "/" + fo.list(ff)[0], null);
-                        
-                            File dir = new File(instancePath);
-                            if (dir.exists() && dir.isDirectory()) {
-                                File[] files = dir.listFiles();
-                                for (File file : files) {
-                                    if (file.getName().endsWith(".jpg")) {
-                                       String[] projection = {Images.ImageColumns._ID};
-                                       Cursor cd = mCtx.getContentResolver().query(Images.Media.EXTERNAL_CONTENT_URI,
-                                               projection,
-                                               "_data='" + instancePath + "/" + file.getName() + "'", null, null);
-                                       if (cd.getCount() > 0) {
-                                           cd.moveToFirst();
-                                           String id = cd.getString(cd.getColumnIndex(Images.ImageColumns._ID));
-
-                                           Log.e(t, "attempting to delete: " + Uri.withAppendedPath(Images.Media.EXTERNAL_CONTENT_URI, id));
-                                           int del =
-                                                   mCtx.getContentResolver().delete(
-                                                           Uri.withAppendedPath(Images.Media.EXTERNAL_CONTENT_URI, id), null, null);
-                                       Log.e(t, "deleted " + del + " image files");
-                                       }
-                                       c.close();
-                                       
-                                    }
-                                }
-                            }
-                        
-                        if (c.getCount() == 0 && !FileUtils.deleteFolder(instancePath)) {
-                            Log.i(t, "Failed to delete " + instancePath);
-                        }
-                        c.close();
-                    }
+    /**
+     * Remove the entries of files that are no longer on the sd card. Stats every file, so call
+     * off the main thread.
+     */
+    public void cleanFiles() {
+        long start = System.currentTimeMillis();
+        ArrayList<String> missing = new ArrayList<String>();
+        Cursor c =
+                mDb.query(DATABASE_TABLE, new String[] {KEY_FILEPATH}, null, null, null, null,
+                        null);
+        if (c != null) {
+            int pathColumn = c.getColumnIndex(KEY_FILEPATH);
+            while (c.moveToNext()) {
+                String path = c.getString(pathColumn);
+                if (!new File(path).exists()) {
+                    missing.add(path);
                 }
-
             }
+            c.close();
+        }
 
-            // clean up adapter
-            if (c != null) {
-                c.close();
+        // one transaction, so the entries are removed with one journal write
+        if (missing.size() > 0) {
+            SQLiteStatement delete = mDb.compileStatement("delete from " + DATABASE_TABLE
+                    + " where " + KEY_FILEPATH + "=?");
+            mDb.beginTransaction();
+            try {
+                for (String path : missing) {
+                    delete.bindString(1, path);
+                    delete.execute();
+                }
+                mDb.setTransactionSuccessful();
+            } finally {
+                mDb.endTransaction();
+                delete.close();
             }
+            notifyChange(null, null);
         }
+        Log.i(t, "Removed " + missing.size() + " missing files in "
+                + (System.currentTimeMillis() - start) + "ms");
     }
 
-
 }
@@ -0,0 +1,138 @@
+/*
+ * Copyright (C) 2009 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.odk.collect.android.database;
+
+import java.util.List;
+
+import org.odk.collect.android.application.Collect;
+
+import android.content.ContentProvider;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.net.Uri;
+
+/**
+ * Reads forms and instances from the {@link FileDbAdapter} for lists. Files of a type are at
+ * content://org.odk.collect.android.files/files/type, and files of a type and status at
+ * .../files/type/status. The page to read is given by the {@link #PARAM_SORT},
+ * {@link #PARAM_SEARCH}, {@link #PARAM_AFTER_KEY}, {@link #PARAM_AFTER_ID} and
+ * {@link #PARAM_LIMIT} query parameters, as {@link FileDbAdapter#fetchFilesPage} takes them.
+ * <p>
+ * The adapter announces each change on the uri of the files it touched, and the first page of a
+ * list is watching that uri, so the list reads its files again when, and only when, they changed.
+ * Files are only changed through the adapter, so the provider is read only.
+ *
+ * @author Carl Hartung (carlhartung@gmail.com)
+ */
+public class FileProvider extends ContentProvider {
+
+    public static final String AUTHORITY = "org.odk.collect.android.files";
+    public static final Uri CONTENT_URI = Uri.parse("content://" + AUTHORITY + "/files");
+
+    public static final String CONTENT_TYPE = "vnd.android.cursor.dir/vnd.odk.file";
+
+    // query parameters
+    public static final String PARAM_SORT = "sort";
+    public static final String PARAM_SEARCH = "search";
+    public static final String PARAM_AFTER_KEY = "after_key";
+    public static final String PARAM_AFTER_ID = "after_id";
+    public static final String PARAM_LIMIT = "limit";
+
+
+    /**
+     * @param type type of the files, or null for every file
+     * @param status status of the files, or null for every status of the type
+     * @return uri of the files
+     */
+    public static Uri getContentUri(String type, String status) {
+        if (type == null) {
+            return CONTENT_URI;
+        }
+        Uri.Builder builder = CONTENT_URI.buildUpon().appendPath(type);
+        if (status != null) {
+            builder.appendPath(status);
+        }
+        return builder.build();
+    }
+
+
+    @Override
+    public boolean onCreate() {
+        return true;
+    }
+
+
+    /**
+     * Read one page of files. Projection, selection and sort order are ignored: the path picks the
+     * files and the query parameters pick the page.
+     */
+    @Override
+    public Cursor query(Uri uri, String[] projection, String selection, String[] selectionArgs,
+            String sortOrder) {
+        List<String> segments = uri.getPathSegments();
+        if (segments.size() < 1 || segments.size() > 3) {
+            throw new IllegalArgumentException("Unknown uri " + uri);
+        }
+        String type = segments.size() > 1 ? segments.get(1) : null;
+        String status = segments.size() > 2 ? segments.get(2) : null;
+
+        String sort = uri.getQueryParameter(PARAM_SORT);
+        if (!FileDbAdapter.KEY_DISPLAY.equals(sort)) {
+            sort = FileDbAdapter.KEY_MODIFIED;
+        }
+        String afterKey = uri.getQueryParameter(PARAM_AFTER_KEY);
+        String afterId = uri.getQueryParameter(PARAM_AFTER_ID);
+        String limit = uri.getQueryParameter(PARAM_LIMIT);
+
+        Cursor c =
+                Collect.getInstance().getFileDbAdapter().fetchFilesPage(type, status,
+                        uri.getQueryParameter(PARAM_SEARCH), sort, afterKey,
+                        afterId == null ? 0 : Long.parseLong(afterId),
+                        limit == null ? 0 : Integer.parseInt(limit));
+
+        // only the first page watches, so a list made of many pages is told once
+        if (afterKey == null) {
+            c.setNotificationUri(getContext().getContentResolver(), getContentUri(type, status));
+        }
+        return c;
+    }
+
+
+    @Override
+    public String getType(Uri uri) {
+        return CONTENT_TYPE;
+    }
+
+
+    @Override
+    public Uri insert(Uri uri, ContentValues values) {
+        throw new UnsupportedOperationException("Files are added through FileDbAdapter");
+    }
+
+
+    @Override
+    public int update(Uri uri, ContentValues values, String selection, String[] selectionArgs) {
+        throw new UnsupportedOperationException("Files are changed through FileDbAdapter");
+    }
+
+
+    @Override
+    public int delete(Uri uri, String selection, String[] selectionArgs) {
+        throw new UnsupportedOperationException("Files are removed through FileDbAdapter");
+    }
+
+}
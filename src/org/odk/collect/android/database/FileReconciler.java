@@ -0,0 +1,619 @@
+/*
+ * Copyright (C) 2009 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.odk.collect.android.database;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import org.odk.collect.android.application.Collect;
+import org.odk.collect.android.listeners.FileReconcilerListener;
+import org.odk.collect.android.logic.GlobalConstants;
+import org.odk.collect.android.utilities.FileUtils;
+
+import android.content.ContentResolver;
+import android.database.Cursor;
+import android.os.FileObserver;
+import android.os.Handler;
+import android.os.Process;
+import android.provider.MediaStore.Images;
+import android.util.Log;
+
+/**
+ * Keeps the file database in step with the forms and instances folders on the sd card, one
+ * change at a time. Folders are watched while the application runs. At startup, only the
+ * differences from the state recorded when it last ran are processed. Forms are compared by
+ * name, length and modified time, and instance folders are only listed if the instances folder
+ * itself has been modified. All of the work is done on one background thread.
+ * <p>
+ * Watches die when the sd card is unmounted, for instance while it is shared over usb to copy
+ * forms onto it, and there is nothing to watch if it is missing at startup. Call
+ * {@link #start()} again when the card is mounted to watch it afresh and catch up.
+ * <p>
+ * Instances are written by the application and are only ever removed from outside it, so only
+ * instance folders that disappear are looked at. Their files are dropped from the database.
+ *
+ * @author Carl Hartung (carlhartung@gmail.com)
+ */
+public class FileReconciler {
+    private final static String t = "FileReconciler";
+
+    private final static String STATE_PATH = GlobalConstants.CACHE_PATH + ".files";
+    private final static String STATE_TMP_PATH = STATE_PATH + ".tmp";
+
+    private final static int MAGIC = 0x4f444b46;
+    private final static int VERSION = 1;
+
+    private final static int FORM_EVENTS =
+            FileObserver.CLOSE_WRITE | FileObserver.MOVED_TO | FileObserver.DELETE
+                    | FileObserver.MOVED_FROM;
+    private final static int INSTANCE_EVENTS = FileObserver.DELETE | FileObserver.MOVED_FROM;
+
+    // instance folders whose pictures are removed from the media store in one delete, two
+    // arguments each
+    private final static int MEDIA_BATCH = 200;
+
+    private final ExecutorService mExecutor;
+    private final Handler mHandler;
+
+    // only touched on the executor thread
+    private HashMap<String, Entry> mForms;
+    private long mInstancesModified;
+    private boolean mSavePending;
+
+    // kept so they aren't collected, which stops them watching
+    private FileObserver mFormsObserver;
+    private FileObserver mInstancesObserver;
+
+    private FileReconcilerListener mListener;
+
+    /**
+     * Told how far a {@link FileReconciler#delete} has got, on the thread deleting.
+     */
+    public interface DeleteProgress {
+        void deleted(int done, int total);
+    }
+
+    private static class Entry {
+        final long length;
+        final long modified;
+
+
+        Entry(long length, long modified) {
+            this.length = length;
+            this.modified = modified;
+        }
+    }
+
+
+    /**
+     * Must be created on the main thread, which is where the listener is called.
+     */
+    public FileReconciler() {
+        mHandler = new Handler();
+        mExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                return new Thread(r, t);
+            }
+        });
+    }
+
+
+    /**
+     * Start watching the folders, and catch up with changes made while the application wasn't
+     * running or the sd card wasn't mounted. Replaces the watches of an earlier start.
+     */
+    public void start() {
+        mExecutor.execute(new Runnable() {
+            public void run() {
+                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                // every file would look deleted without the sd card
+                if (startWatching()) {
+                    catchUp();
+                }
+            }
+        });
+    }
+
+
+    /**
+     * @return false if the sd card isn't there to watch
+     */
+    private boolean startWatching() {
+        if (mFormsObserver != null) {
+            mFormsObserver.stopWatching();
+            mInstancesObserver.stopWatching();
+            mFormsObserver = null;
+            mInstancesObserver = null;
+        }
+        if (!FileUtils.createFolder(GlobalConstants.FORMS_PATH)
+                || !FileUtils.createFolder(GlobalConstants.INSTANCES_PATH)) {
+            Log.e(t, "Storage not ready, folders not watched");
+            return false;
+        }
+
+        mFormsObserver = new FileObserver(GlobalConstants.FORMS_PATH, FORM_EVENTS) {
+            @Override
+            public void onEvent(int event, final String name) {
+                if (name == null || name.startsWith(".")) {
+                    return;
+                }
+                mExecutor.execute(new Runnable() {
+                    public void run() {
+                        changed(reconcileForm(name));
+                    }
+                });
+            }
+        };
+        mInstancesObserver = new FileObserver(GlobalConstants.INSTANCES_PATH, INSTANCE_EVENTS) {
+            @Override
+            public void onEvent(int event, final String name) {
+                if (name == null) {
+                    return;
+                }
+                mExecutor.execute(new Runnable() {
+                    public void run() {
+                        boolean changed = reconcileInstanceFolder(name);
+                        if (changed) {
+                            ArrayList<String> folders = new ArrayList<String>(1);
+                            folders.add(GlobalConstants.INSTANCES_PATH + name);
+                            removeMedia(folders);
+                        }
+                        mInstancesModified =
+                                new File(GlobalConstants.INSTANCES_PATH).lastModified();
+                        changed(changed);
+                    }
+                });
+            }
+        };
+        mFormsObserver.startWatching();
+        mInstancesObserver.startWatching();
+        return true;
+    }
+
+
+    private void catchUp() {
+        long start = System.currentTimeMillis();
+        FileDbAdapter fda = Collect.getInstance().getFileDbAdapter();
+
+        // without a record of the last run, every file is new. later catch ups start from the
+        // state kept since
+        boolean full = mForms == null && !load();
+        if (full) {
+            fda.cleanFiles();
+        }
+
+        int changes = 0;
+
+        // forms are few, so every one is looked at
+        File formsFolder = new File(GlobalConstants.FORMS_PATH);
+        String[] names = formsFolder.list();
+        if (names != null) {
+            HashSet<String> gone = new HashSet<String>(mForms.keySet());
+            for (String name : names) {
+                gone.remove(name);
+                if (!name.startsWith(".") && reconcileForm(name)) {
+                    changes++;
+                }
+            }
+            for (String name : gone) {
+                if (reconcileForm(name)) {
+                    changes++;
+                }
+            }
+        }
+
+        // adding or removing an instance folder modifies the instances folder
+        File instancesFolder = new File(GlobalConstants.INSTANCES_PATH);
+        long modified = instancesFolder.lastModified();
+        String[] folders = instancesFolder.list();
+        if (folders != null && (full || modified != mInstancesModified)) {
+            HashSet<String> present = new HashSet<String>();
+            for (String folder : folders) {
+                present.add(folder);
+            }
+            Cursor c = fda.fetchFilesByType(FileDbAdapter.TYPE_INSTANCE, null);
+            ArrayList<String> lost = new ArrayList<String>();
+            if (c != null) {
+                int pathColumn = c.getColumnIndex(FileDbAdapter.KEY_FILEPATH);
+                for (c.moveToFirst(); !c.isAfterLast(); c.moveToNext()) {
+                    File folder = new File(c.getString(pathColumn)).getParentFile();
+                    if (!present.contains(folder.getName())) {
+                        lost.add(folder.getName());
+                    }
+                }
+                c.close();
+            }
+            ArrayList<String> removed = new ArrayList<String>();
+            for (String folder : lost) {
+                if (reconcileInstanceFolder(folder)) {
+                    removed.add(GlobalConstants.INSTANCES_PATH + folder);
+                }
+            }
+            removeMedia(removed);
+            changes += removed.size();
+            mInstancesModified = modified;
+        }
+
+        save();
+        Log.i(t, "Caught up with " + changes + " changes in "
+                + (System.currentTimeMillis() - start) + "ms");
+        if (changes > 0) {
+            notifyListener();
+        }
+    }
+
+
+    /**
+     * Bring the database in line with one file in the forms folder.
+     *
+     * @return true if the database changed
+     */
+    private boolean reconcileForm(String name) {
+        File formXml = new File(GlobalConstants.FORMS_PATH + name);
+        Entry known = mForms.get(name);
+
+        if (!formXml.isFile()) {
+            if (known == null) {
+                return false;
+            }
+            mForms.remove(name);
+            removeForm(formXml.getAbsolutePath());
+            return true;
+        }
+
+        long length = formXml.length();
+        long modified = formXml.lastModified();
+        if (known != null && known.length == length && known.modified == modified) {
+            return false;
+        }
+        mForms.put(name, new Entry(length, modified));
+        return addForm(formXml);
+    }
+
+
+    private boolean addForm(File formXml) {
+        String formPath = formXml.getAbsolutePath();
+        String hash = FileUtils.getMd5Hash(formXml);
+        if (hash == null) {
+            return false;
+        }
+
+        FileDbAdapter fda = Collect.getInstance().getFileDbAdapter();
+        Cursor c = fda.fetchFilesByPath(null, hash);
+        if (c.getCount() > 0) {
+            String path = c.getString(c.getColumnIndex(FileDbAdapter.KEY_FILEPATH));
+            c.close();
+            // the same form is already there under another name
+            if (!path.equals(formPath) && !formXml.delete()) {
+                Log.i(t, "Failed to delete " + formPath);
+            }
+            return false;
+        }
+        c.close();
+
+        // the form at this path has changed, so the old version goes
+        removeForm(formPath);
+        fda.createFile(formPath, FileDbAdapter.TYPE_FORM, FileDbAdapter.STATUS_AVAILABLE, hash);
+        Collect.getInstance().getFormPrecompiler().compile(formPath);
+        return true;
+    }
+
+
+    /**
+     * Drop a form from the database, along with its cached binary and text once no other form
+     * has the same hash.
+     */
+    private void removeForm(String formPath) {
+        FileDbAdapter fda = Collect.getInstance().getFileDbAdapter();
+        Cursor c = fda.fetchFilesByPath(formPath, null);
+        String hash = null;
+        if (c.getCount() > 0) {
+            hash = c.getString(c.getColumnIndex(FileDbAdapter.KEY_HASH));
+        }
+        c.close();
+        if (hash == null) {
+            return;
+        }
+        fda.deleteFile(formPath, null);
+
+        HashSet<String> hashes = new HashSet<String>();
+        hashes.add(hash);
+        removeCachedForms(hashes);
+    }
+
+
+    /**
+     * Delete the cached binaries of forms that no longer have a file in the database with the
+     * same hash.
+     */
+    private void removeCachedForms(HashSet<String> hashes) {
+        FileDbAdapter fda = Collect.getInstance().getFileDbAdapter();
+        for (Iterator<String> i = hashes.iterator(); i.hasNext();) {
+            Cursor c = fda.fetchFilesByPath(null, i.next());
+            if (c.getCount() > 0) {
+                i.remove();
+            }
+            c.close();
+        }
+        if (hashes.isEmpty()) {
+            return;
+        }
+
+        // binaries are hash.formdef, their text files hash.n.locale
+        String[] cached = new File(GlobalConstants.CACHE_PATH).list();
+        if (cached != null) {
+            for (String name : cached) {
+                int dot = name.indexOf('.');
+                if (dot > 0 && hashes.contains(name.substring(0, dot))
+                        && !new File(GlobalConstants.CACHE_PATH + name).delete()) {
+                    Log.i(t, "Failed to delete " + name);
+                }
+            }
+        }
+    }
+
+
+    /**
+     * Drop the files of an instance folder from the database if the folder is gone.
+     *
+     * @return true if the database changed
+     */
+    private boolean reconcileInstanceFolder(String name) {
+        File folder = new File(GlobalConstants.INSTANCES_PATH + name);
+        if (folder.exists()) {
+            return false;
+        }
+        return Collect.getInstance().getFileDbAdapter().deleteFilesInFolder(
+                folder.getAbsolutePath()) > 0;
+    }
+
+
+    /**
+     * Delete forms and instances, first from the database in one transaction and then from the sd
+     * card, along with the cached binaries of the forms. Only the files chosen are touched.
+     * Pictures of the instances are removed from the media store afterwards, on the executor.
+     * Call from a background thread.
+     *
+     * @param ids row ids
+     * @param progress told after each file is deleted, or null
+     * @return number of files that were in the database
+     */
+    public int delete(List<Long> ids, DeleteProgress progress) {
+        FileDbAdapter fda = Collect.getInstance().getFileDbAdapter();
+        ArrayList<String> paths = new ArrayList<String>(ids.size());
+        ArrayList<String> types = new ArrayList<String>(ids.size());
+        HashSet<String> formHashes = new HashSet<String>();
+        for (Long id : ids) {
+            Cursor c = fda.fetchFile(id.longValue());
+            if (c.getCount() > 0) {
+                String type = c.getString(c.getColumnIndex(FileDbAdapter.KEY_TYPE));
+                paths.add(c.getString(c.getColumnIndex(FileDbAdapter.KEY_FILEPATH)));
+                types.add(type);
+                if (FileDbAdapter.TYPE_FORM.equals(type)) {
+                    formHashes.add(c.getString(c.getColumnIndex(FileDbAdapter.KEY_HASH)));
+                }
+            }
+            c.close();
+        }
+        int deleted = fda.deleteFiles(ids);
+
+        final ArrayList<String> folders = new ArrayList<String>();
+        for (int i = 0; i < paths.size(); i++) {
+            if (progress != null) {
+                progress.deleted(i, paths.size());
+            }
+            String path = paths.get(i);
+            if (FileDbAdapter.TYPE_FORM.equals(types.get(i))) {
+                if (!FileUtils.deleteFile(path)) {
+                    Log.i(t, "Failed to delete " + path);
+                }
+                continue;
+            }
+
+            File folder = new File(path).getParentFile();
+            if (!FileUtils.deleteFolder(folder.getAbsolutePath())) {
+                Log.i(t, "Failed to delete " + folder.getAbsolutePath());
+            }
+            folders.add(folder.getAbsolutePath());
+        }
+        if (progress != null) {
+            progress.deleted(paths.size(), paths.size());
+        }
+
+        removeCachedForms(formHashes);
+        if (folders.size() > 0) {
+            mExecutor.execute(new Runnable() {
+                public void run() {
+                    removeMedia(folders);
+                }
+            });
+        }
+        return deleted;
+    }
+
+
+    /**
+     * Remove the pictures in instance folders from the media store. Matched by folder rather than
+     * by file, so the folders don't have to be listed, or even exist any more, and many folders
+     * are removed with each delete. Runs on the executor.
+     *
+     * @param folders absolute paths of the instance folders
+     */
+    private void removeMedia(ArrayList<String> folders) {
+        if (folders.size() == 0) {
+            return;
+        }
+        long start = System.currentTimeMillis();
+        ContentResolver cr = Collect.getInstance().getContentResolver();
+
+        int removed = 0;
+        for (int first = 0; first < folders.size(); first += MEDIA_BATCH) {
+            int last = Math.min(first + MEDIA_BATCH, folders.size());
+            StringBuilder where = new StringBuilder();
+            String[] args = new String[(last - first) * 2];
+            for (int i = first; i < last; i++) {
+                if (i > first) {
+                    where.append(" or ");
+                }
+                where.append("(" + Images.Media.DATA + ">=? and " + Images.Media.DATA + "<?)");
+                args[(i - first) * 2] = folders.get(i) + "/";
+                args[(i - first) * 2 + 1] = folders.get(i) + "0";
+            }
+            try {
+                removed += cr.delete(Images.Media.EXTERNAL_CONTENT_URI, where.toString(), args);
+            } catch (RuntimeException e) {
+                // the media store can be unavailable while the sd card is shared
+                Log.e(t, "Cannot remove pictures from the media store: " + e.getMessage());
+                return;
+            }
+        }
+        Log.i(t, "Removed " + removed + " pictures of " + folders.size() + " instances in "
+                + (System.currentTimeMillis() - start) + "ms");
+    }
+
+
+    /**
+     * Record the new state and tell the listener once the events queued so far are done.
+     */
+    private void changed(boolean databaseChanged) {
+        if (databaseChanged) {
+            notifyListener();
+        }
+        if (!mSavePending) {
+            mSavePending = true;
+            mExecutor.execute(new Runnable() {
+                public void run() {
+                    mSavePending = false;
+                    save();
+                }
+            });
+        }
+    }
+
+
+    private void notifyListener() {
+        mHandler.post(new Runnable() {
+            public void run() {
+                if (mListener != null) mListener.filesChanged();
+            }
+        });
+    }
+
+
+    /**
+     * Read the state recorded by the last run.
+     *
+     * @return false if there is none
+     */
+    private boolean load() {
+        mForms = new HashMap<String, Entry>();
+        mInstancesModified = 0;
+
+        File state = new File(STATE_PATH);
+        if (!state.exists()) {
+            return false;
+        }
+        DataInputStream dis = null;
+        try {
+            dis = new DataInputStream(new BufferedInputStream(new FileInputStream(state)));
+            if (dis.readInt() != MAGIC || dis.readInt() != VERSION) {
+                Log.i(t, "Discarding file state with unknown format");
+                return false;
+            }
+            long instancesModified = dis.readLong();
+            int count = dis.readInt();
+            for (int i = 0; i < count; i++) {
+                String name = dis.readUTF();
+                mForms.put(name, new Entry(dis.readLong(), dis.readLong()));
+            }
+            mInstancesModified = instancesModified;
+            return true;
+        } catch (IOException e) {
+            Log.e(t, "Error reading " + STATE_PATH);
+            mForms.clear();
+            return false;
+        } finally {
+            if (dis != null) {
+                try {
+                    dis.close();
+                } catch (IOException e) {
+                    Log.e(t, "Cannot close " + STATE_PATH);
+                }
+            }
+        }
+    }
+
+
+    private void save() {
+        if (!FileUtils.createFolder(GlobalConstants.CACHE_PATH)) {
+            return;
+        }
+        File tmp = new File(STATE_TMP_PATH);
+        DataOutputStream dos = null;
+        try {
+            dos = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+            dos.writeInt(MAGIC);
+            dos.writeInt(VERSION);
+            dos.writeLong(mInstancesModified);
+            dos.writeInt(mForms.size());
+            for (Map.Entry<String, Entry> e : mForms.entrySet()) {
+                dos.writeUTF(e.getKey());
+                dos.writeLong(e.getValue().length);
+                dos.writeLong(e.getValue().modified);
+            }
+            dos.close();
+            dos = null;
+            if (!tmp.renameTo(new File(STATE_PATH))) {
+                Log.e(t, "Failed to rename " + STATE_TMP_PATH);
+            }
+        } catch (IOException e) {
+            Log.e(t, "Error writing " + STATE_PATH);
+        } finally {
+            if (dos != null) {
+                try {
+                    dos.close();
+                } catch (IOException e) {
+                    Log.e(t, "Cannot close " + STATE_TMP_PATH);
+                }
+            }
+        }
+    }
+
+
+    /**
+     * Only touched from the main thread.
+     */
+    public void setFileReconcilerListener(FileReconcilerListener l) {
+        mListener = l;
+    }
+
+}
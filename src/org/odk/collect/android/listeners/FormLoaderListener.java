@@ -17,10 +17,15 @@
 package org.odk.collect.android.listeners;
 
 import org.javarosa.form.api.FormEntryController;
+import org.odk.collect.android.utilities.PhaseTimer;
 
 /**
  * @author Carl Hartung (carlhartung@gmail.com)
  */
 public interface FormLoaderListener {
-    void loadingComplete(FormEntryController fec);
+    /**
+     * @param fec loaded form, or null if it couldn't be loaded
+     * @param timings time spent in each phase of the load
+     */
+    void loadingComplete(FormEntryController fec, PhaseTimer timings);
 }
@@ -16,10 +16,15 @@
 
 package org.odk.collect.android.listeners;
 
+import org.odk.collect.android.utilities.PhaseTimer;
 
 /**
  * @author Carl Hartung (carlhartung@gmail.com)
  */
 public interface FormSavedListener {
-    void savingComplete(int saveStatus);
+    /**
+     * @param saveStatus result code from SaveToDiskTask
+     * @param timings time spent in each phase of the save
+     */
+    void savingComplete(int saveStatus, PhaseTimer timings);
 }
@@ -0,0 +1,152 @@
+/*
+ * Copyright (C) 2009 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.odk.collect.android.logic;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+import org.javarosa.core.model.FormDef;
+import org.javarosa.core.model.instance.FormInstance;
+
+import android.util.Log;
+
+/**
+ * Least recently used cache of loaded {@link FormDef}s keyed by the md5 hash of the form file.
+ * A FormDef is handed to one session at a time and gets a fresh copy of its blank instance each
+ * time it is checked out. The cache is bounded by a rough estimate of the memory each form uses.
+ *
+ * @author Carl Hartung (carlhartung@gmail.com)
+ */
+public class FormDefCache {
+    private final static String t = "FormDefCache";
+
+    /**
+     * A deserialized FormDef takes several times the space of its serialized form.
+     */
+    private final static int SIZE_FACTOR = 4;
+
+    private final long mMaxBytes;
+    private long mBytes;
+
+    // access ordered, so iteration starts at the least recently used form
+    private final LinkedHashMap<String, Entry> mEntries =
+            new LinkedHashMap<String, Entry>(16, 0.75f, true);
+
+    private static class Entry {
+        FormDef formDef;
+        FormInstance blank;
+        long bytes;
+        boolean inUse;
+
+
+        Entry(FormDef formDef, FormInstance blank, long bytes) {
+            this.formDef = formDef;
+            this.blank = blank;
+            this.bytes = bytes;
+        }
+    }
+
+
+    /**
+     * @param maxBytes estimated memory the cached forms may use
+     */
+    public FormDefCache(long maxBytes) {
+        mMaxBytes = maxBytes;
+    }
+
+
+    /**
+     * Returns the cached FormDef for the hash, reset to a blank instance and the default
+     * language, or null if it isn't cached or another session is using it. Call
+     * {@link #release(FormDef)} when the session is done with it.
+     *
+     * @param hash md5 hash of the form file
+     */
+    public synchronized FormDef checkout(String hash) {
+        Entry e = mEntries.get(hash);
+        if (e == null || e.inUse) {
+            return null;
+        }
+        e.inUse = true;
+
+        FormDef fd = e.formDef;
+        fd.setInstance(e.blank.clone());
+        if (fd.getLocalizer() != null) {
+            fd.getLocalizer().setToDefault();
+        }
+        return fd;
+    }
+
+
+    /**
+     * Add a newly loaded FormDef to the cache and check it out to the caller. Must be called
+     * before the FormDef is initialized so its blank instance can be kept.
+     *
+     * @param hash md5 hash of the form file
+     * @param fd form that has not been initialized yet
+     * @param serializedBytes size of the serialized form, used to estimate its size in memory
+     */
+    public synchronized void put(String hash, FormDef fd, long serializedBytes) {
+        Entry e = new Entry(fd, fd.getInstance().clone(), serializedBytes * SIZE_FACTOR);
+        e.inUse = true;
+        if (e.bytes > mMaxBytes) {
+            Log.i(t, "Form " + hash + " is too large to cache");
+            return;
+        }
+
+        Entry old = mEntries.put(hash, e);
+        if (old != null) {
+            mBytes -= old.bytes;
+        }
+        mBytes += e.bytes;
+        trim();
+    }
+
+
+    /**
+     * Return a checked out FormDef so the next session of the same form can reuse it. FormDefs
+     * that have been evicted in the meantime are ignored.
+     */
+    public synchronized void release(FormDef fd) {
+        for (Entry e : mEntries.values()) {
+            if (e.formDef == fd) {
+                e.inUse = false;
+                return;
+            }
+        }
+    }
+
+
+    /**
+     * Drop every cached form. Forms that are checked out stay usable by their sessions.
+     */
+    public synchronized void clear() {
+        mEntries.clear();
+        mBytes = 0;
+    }
+
+
+    private void trim() {
+        Iterator<Entry> it = mEntries.values().iterator();
+        while (mBytes > mMaxBytes && it.hasNext()) {
+            Entry e = it.next();
+            mBytes -= e.bytes;
+            it.remove();
+        }
+    }
+
+}
@@ -0,0 +1,190 @@
+/*
+ * Copyright (C) 2009 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.odk.collect.android.logic;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import org.javarosa.core.model.FormDef;
+import org.odk.collect.android.application.Collect;
+import org.odk.collect.android.database.FileDbAdapter;
+import org.odk.collect.android.listeners.FormPrecompilerListener;
+import org.odk.collect.android.tasks.FormLoaderTask;
+import org.odk.collect.android.utilities.FileUtils;
+import org.odk.collect.android.utilities.FormDefSerializer;
+import org.odk.collect.android.utilities.PhaseTimer;
+import org.odk.collect.android.utilities.TimingLog;
+
+import android.os.Handler;
+import android.os.Process;
+import android.util.Log;
+
+/**
+ * Compiles forms into the binary {@link FormDef}s that {@link FormLoaderTask} reads, so the xml
+ * parse happens in the background instead of the first time a form is opened. Forms are compiled
+ * on a pool with one thread per cpu core, but the xform parser only parses one form at a time, so
+ * only the hashing and serializing of different forms overlap.
+ * <p>
+ * Compile times are added to the {@link TimingLog}, and forms that can't be parsed are marked
+ * {@link FileDbAdapter#STATUS_BROKEN} so they show up in the form list before anyone reaches the
+ * field.
+ *
+ * @author Carl Hartung (carlhartung@gmail.com)
+ */
+public class FormPrecompiler {
+    private final static String t = "FormPrecompiler";
+
+    private final ExecutorService mExecutor;
+    private final Handler mHandler;
+
+    // forms waiting for or being compiled
+    private final HashSet<String> mPending = new HashSet<String>();
+
+    private FormPrecompilerListener mListener;
+
+
+    /**
+     * Must be created on the main thread, which is where the listener is called.
+     */
+    public FormPrecompiler() {
+        mHandler = new Handler();
+        mExecutor =
+                Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(),
+                        new ThreadFactory() {
+                            private int mCount = 0;
+
+
+                            public synchronized Thread newThread(Runnable r) {
+                                return new Thread(r, t + " " + ++mCount);
+                            }
+                        });
+    }
+
+
+    /**
+     * Compile every form in the forms folder that doesn't have a binary yet. The folder is listed
+     * in the background too.
+     */
+    public void compileAll() {
+        mExecutor.execute(new Runnable() {
+            public void run() {
+                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                ArrayList<String> forms =
+                        FileUtils.getFilesAsArrayList(GlobalConstants.FORMS_PATH);
+                if (forms != null) {
+                    for (String formPath : forms) {
+                        compile(formPath);
+                    }
+                }
+            }
+        });
+    }
+
+
+    /**
+     * Compile the form in the background if it doesn't have a binary yet.
+     *
+     * @param formPath full path to the xml form
+     */
+    public void compile(final String formPath) {
+        synchronized (mPending) {
+            if (!mPending.add(formPath)) {
+                return;
+            }
+        }
+
+        mExecutor.execute(new Runnable() {
+            public void run() {
+                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                try {
+                    compileForm(formPath);
+                } finally {
+                    synchronized (mPending) {
+                        mPending.remove(formPath);
+                    }
+                }
+            }
+        });
+    }
+
+
+    /**
+     * Compile a form. How long each phase took goes in the {@link TimingLog}, and a form that
+     * can't be parsed is marked as broken in the file database, so both outlast the listener.
+     */
+    private void compileForm(final String formPath) {
+        File formXml = new File(formPath);
+        PhaseTimer timer = new PhaseTimer(PhaseTimer.COMPILE, formXml.getName());
+        String hash = FileUtils.getMd5Hash(formXml);
+        if (hash == null) {
+            return;
+        }
+        File formBin = FormDefSerializer.getFormDefFile(hash);
+        if (FormDefSerializer.isCurrent(formBin)) {
+            return;
+        }
+        timer.mark("hash");
+
+        FormDef fd = null;
+        try {
+            fd = FormLoaderTask.parseFormDef(formXml, true);
+        } catch (RuntimeException e) {
+            // javarosa reports malformed forms with runtime exceptions
+            e.printStackTrace();
+        }
+        timer.mark("parse");
+
+        FileDbAdapter fda = Collect.getInstance().getFileDbAdapter();
+        if (fd == null) {
+            fda.updateStatus(formXml.getAbsolutePath(), FileDbAdapter.STATUS_BROKEN);
+        }
+        if (fd == null || !FormDefSerializer.write(fd, formBin)) {
+            Log.e(t, "Failed to compile " + formPath);
+            mHandler.post(new Runnable() {
+                public void run() {
+                    if (mListener != null) mListener.formCompileFailed(formPath);
+                }
+            });
+            return;
+        }
+        timer.mark("serialize");
+
+        // a form that was broken may have been fixed in place
+        fda.updateStatus(formXml.getAbsolutePath(), FileDbAdapter.STATUS_AVAILABLE);
+        TimingLog.append(timer);
+        final long millis = timer.getTotalMillis();
+        Log.i(t, "Compiled " + formPath + " in " + millis + "ms");
+        mHandler.post(new Runnable() {
+            public void run() {
+                if (mListener != null) mListener.formCompiled(formPath, millis);
+            }
+        });
+    }
+
+
+    /**
+     * Only touched from the main thread.
+     */
+    public void setFormPrecompilerListener(FormPrecompilerListener l) {
+        mListener = l;
+    }
+
+}
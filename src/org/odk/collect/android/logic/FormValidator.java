@@ -0,0 +1,228 @@
+/*
+ * Copyright (C) 2009 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.odk.collect.android.logic;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Vector;
+
+import org.javarosa.core.model.FormDef;
+import org.javarosa.core.model.FormIndex;
+import org.javarosa.core.model.IFormElement;
+import org.javarosa.core.model.QuestionDef;
+import org.javarosa.core.model.condition.Constraint;
+import org.javarosa.core.model.data.IAnswerData;
+import org.javarosa.core.model.instance.TreeElement;
+import org.javarosa.core.model.instance.TreeReference;
+import org.javarosa.form.api.FormEntryController;
+
+import android.util.Log;
+
+/**
+ * Checks every answer in a form against its constraint, and every required question for an
+ * answer, without answering the questions again. Answering a question re-fires the triggerables
+ * that depend on it, which made checking a large form cost questions times triggers.
+ * <p>
+ * Constraints are evaluated directly, and only when they could have changed. A constraint that
+ * only looks at its own answer is skipped if the answer is the same object it was when the
+ * constraint last passed. Editing a question or recalculating it replaces the answer object, and
+ * a new repeat or a question that just became relevant has no passed answer yet, so those are
+ * always checked. Constraints that look at other nodes are checked every time.
+ *
+ * @author Carl Hartung (carlhartung@gmail.com)
+ */
+public class FormValidator {
+    private final static String t = "FormValidator";
+
+    private final static TreeReference SELF = TreeReference.selfRef();
+
+    /**
+     * A question that can't be saved as it is.
+     */
+    public static class Violation {
+        public final FormIndex index;
+
+        /**
+         * {@link FormEntryController#ANSWER_CONSTRAINT_VIOLATED} or
+         * {@link FormEntryController#ANSWER_REQUIRED_BUT_EMPTY}
+         */
+        public final int status;
+
+
+        Violation(FormIndex index, int status) {
+            this.index = index;
+            this.status = status;
+        }
+    }
+
+    private final FormEntryController mFormEntryController;
+
+    // answer each question had when its constraint last passed
+    private final HashMap<TreeReference, IAnswerData> mPassed =
+            new HashMap<TreeReference, IAnswerData>();
+
+    // whether each constraint depends on nothing but the answer it constrains
+    private final HashMap<Constraint, Boolean> mSelfOnly = new HashMap<Constraint, Boolean>();
+
+    // questions by generic reference, built on the first check
+    private HashMap<TreeReference, QuestionDef> mQuestions;
+
+    private int mEvaluated;
+
+
+    public FormValidator(FormEntryController fec) {
+        mFormEntryController = fec;
+    }
+
+
+    /**
+     * Check every relevant question. The controller is left on the first violation, or where it
+     * was if there are none.
+     *
+     * @param markCompleted also report required questions without an answer
+     * @return every violation in form order
+     */
+    public synchronized ArrayList<Violation> validate(boolean markCompleted) {
+        FormDef fd = mFormEntryController.getModel().getForm();
+        if (mQuestions == null) {
+            mQuestions = new HashMap<TreeReference, QuestionDef>();
+            collectQuestions(fd, mQuestions);
+        }
+
+        // walking the instance is much cheaper than stepping the controller through the form
+        HashMap<TreeReference, Integer> found = new HashMap<TreeReference, Integer>();
+        mEvaluated = 0;
+        checkNode(fd, fd.getInstance().getRoot(), markCompleted, found);
+        Log.i(t, "Evaluated " + mEvaluated + " constraints, found " + found.size()
+                + " violations");
+
+        return locate(found);
+    }
+
+
+    private void checkNode(FormDef fd, TreeElement node, boolean markCompleted,
+            HashMap<TreeReference, Integer> found) {
+        if (!node.isRelevant() || node.getMult() == TreeReference.INDEX_TEMPLATE) {
+            return;
+        }
+        if (!node.isLeaf()) {
+            for (int i = 0; i < node.getNumChildren(); i++) {
+                checkNode(fd, node.getChildAt(i), markCompleted, found);
+            }
+            return;
+        }
+
+        TreeReference ref = node.getRef();
+        QuestionDef question = mQuestions.get(ref.genericize());
+        if (question == null) {
+            return;
+        }
+
+        IAnswerData value = node.getValue();
+        if (value == null) {
+            if (markCompleted && node.required) {
+                found.put(ref, Integer.valueOf(FormEntryController.ANSWER_REQUIRED_BUT_EMPTY));
+            }
+            return;
+        }
+
+        // itemset answers aren't checked against constraints when they are answered either
+        Constraint constraint = node.getConstraint();
+        if (constraint == null || question.isComplex()) {
+            return;
+        }
+        if (isSelfOnly(constraint) && mPassed.get(ref) == value) {
+            return;
+        }
+
+        mEvaluated++;
+        if (fd.evaluateConstraint(ref, value)) {
+            mPassed.put(ref, value);
+        } else {
+            mPassed.remove(ref);
+            found.put(ref, Integer.valueOf(FormEntryController.ANSWER_CONSTRAINT_VIOLATED));
+        }
+    }
+
+
+    /**
+     * Step through the form to find the index of each violation, stopping once all are found.
+     */
+    private ArrayList<Violation> locate(HashMap<TreeReference, Integer> found) {
+        ArrayList<Violation> violations = new ArrayList<Violation>();
+        if (found.size() == 0) {
+            return violations;
+        }
+
+        mFormEntryController.jumpToIndex(FormIndex.createBeginningOfFormIndex());
+        int event;
+        while (violations.size() < found.size()
+                && (event = mFormEntryController.stepToNextEvent())
+                != FormEntryController.EVENT_END_OF_FORM) {
+            if (event != FormEntryController.EVENT_QUESTION) {
+                continue;
+            }
+            FormIndex index = mFormEntryController.getModel().getFormIndex();
+            Integer status = found.get(index.getReference());
+            if (status != null) {
+                violations.add(new Violation(index, status.intValue()));
+            }
+        }
+
+        if (violations.size() > 0) {
+            mFormEntryController.jumpToIndex(violations.get(0).index);
+        }
+        return violations;
+    }
+
+
+    /**
+     * Map the generic reference of each question to the question.
+     */
+    static void collectQuestions(IFormElement element,
+            HashMap<TreeReference, QuestionDef> questions) {
+        if (element instanceof QuestionDef) {
+            TreeReference ref = (TreeReference) element.getBind().getReference();
+            questions.put(ref.genericize(), (QuestionDef) element);
+            return;
+        }
+        Vector<?> children = element.getChildren();
+        if (children != null) {
+            for (int i = 0; i < children.size(); i++) {
+                collectQuestions((IFormElement) children.elementAt(i), questions);
+            }
+        }
+    }
+
+
+    private boolean isSelfOnly(Constraint constraint) {
+        Boolean selfOnly = mSelfOnly.get(constraint);
+        if (selfOnly == null) {
+            selfOnly = Boolean.TRUE;
+            Vector<?> triggers = constraint.constraint.getTriggers();
+            for (int i = 0; i < triggers.size(); i++) {
+                if (!SELF.equals(triggers.elementAt(i))) {
+                    selfOnly = Boolean.FALSE;
+                    break;
+                }
+            }
+            mSelfOnly.put(constraint, selfOnly);
+        }
+        return selfOnly.booleanValue();
+    }
+
+}
@@ -131,7 +131,8 @@ public class GlobalConstants {
                     "org.javarosa.xpath.expr.XPathPathExpr",
                     "org.javarosa.xpath.expr.XPathStringLiteral",
                     "org.javarosa.xpath.expr.XPathUnionExpr",
-                    "org.javarosa.xpath.expr.XPathVariableReference"};
+                    "org.javarosa.xpath.expr.XPathVariableReference",
+                    "org.odk.collect.android.logic.LocaleFileSource"};
     
     public final static String CACHE_LIST = "formlist.xml";
 
@@ -0,0 +1,318 @@
+/*
+ * Copyright (C) 2009 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.odk.collect.android.logic;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+
+import org.javarosa.core.model.FormDef;
+import org.javarosa.core.model.IAnswerDataSerializer;
+import org.javarosa.core.model.QuestionDef;
+import org.javarosa.core.model.data.IAnswerData;
+import org.javarosa.core.model.instance.FormInstance;
+import org.javarosa.core.model.instance.TreeElement;
+import org.javarosa.core.model.instance.TreeReference;
+import org.javarosa.xform.util.XFormAnswerDataSerializer;
+import org.kxml2.kdom.Element;
+import org.odk.collect.android.utilities.FileUtils;
+import org.xmlpull.v1.XmlSerializer;
+
+import android.util.Log;
+import android.util.Xml;
+
+/**
+ * Writes a form's instance to a saved instance file. The instance tree is streamed through an
+ * xml serializer as utf-8 into a hidden temporary file, hashing the bytes on the way, so the
+ * instance is never held in memory as a document, a string or bytes, and the file never has to be
+ * read back to be hashed. The temporary file is synced and renamed over the instance file, so a
+ * crash or power loss leaves either the old file or the new one. Follows the same rules as
+ * {@link org.javarosa.model.xform.XFormSerializingVisitor}: templates and nodes that aren't
+ * relevant are left out, and children are grouped by name.
+ * <p>
+ * The nodes to write are copied when the exporter is created, so the instance can keep being
+ * edited while the file is written on another thread. Answers aren't copied: answering a
+ * question replaces its answer rather than changing it, so the copy keeps the answers it was made
+ * with.
+ * <p>
+ * Only leaves bound to a question of the form count towards the questions and answers, so
+ * preloaded values such as the start time or device id don't count as answered.
+ *
+ * @author Carl Hartung (carlhartung@gmail.com)
+ */
+public class InstanceExporter {
+    private final static String t = "InstanceExporter";
+
+    private final static String ENCODING = "UTF-8";
+
+    private final String[] mPrefixes;
+    private final String[] mNamespaces;
+    private final String mSchema;
+    private final Node mRoot;
+
+    private int mQuestions;
+    private int mAnswered;
+
+    // questions by generic reference, only while copying
+    private HashMap<TreeReference, QuestionDef> mQuestionRefs;
+
+    private final IAnswerDataSerializer mAnswerSerializer = new XFormAnswerDataSerializer();
+    private XmlSerializer mSerializer;
+
+    /**
+     * Copy of one node, holding only what is written.
+     */
+    private static class Node {
+        final String name;
+        final String[] attributes;
+        final IAnswerData value;
+        final int dataType;
+        final Node[] children;
+
+
+        Node(TreeElement element, Node[] children) {
+            this.name = element.getName();
+            this.attributes = new String[element.getAttributeCount() * 3];
+            for (int i = 0; i < element.getAttributeCount(); i++) {
+                attributes[i * 3] = element.getAttributeNamespace(i);
+                attributes[i * 3 + 1] = element.getAttributeName(i);
+                attributes[i * 3 + 2] = element.getAttributeValue(i);
+            }
+            this.value = element.getValue();
+            this.dataType = element.dataType;
+            this.children = children;
+        }
+    }
+
+
+    /**
+     * Copy the form's instance. Call from the thread that edits it.
+     */
+    public InstanceExporter(FormDef fd) {
+        FormInstance instance = fd.getInstance();
+        mQuestionRefs = new HashMap<TreeReference, QuestionDef>();
+        FormValidator.collectQuestions(fd, mQuestionRefs);
+        mPrefixes = instance.getNamespacePrefixes();
+        mNamespaces = new String[mPrefixes.length];
+        for (int i = 0; i < mPrefixes.length; i++) {
+            mNamespaces[i] = instance.getNamespaceURI(mPrefixes[i]);
+        }
+        mSchema = instance.schema;
+        mRoot = instance.getRoot() == null ? null : copyNode(instance.getRoot());
+        mQuestionRefs = null;
+    }
+
+
+    /**
+     * @return copy of the node, or null if it isn't written
+     */
+    private Node copyNode(TreeElement element) {
+        if (!element.isRelevant() || element.getMult() == TreeReference.INDEX_TEMPLATE) {
+            return null;
+        }
+        boolean question =
+                element.isLeaf() && mQuestionRefs.containsKey(element.getRef().genericize());
+        if (question) {
+            mQuestions++;
+        }
+        if (element.getValue() != null) {
+            if (question) {
+                mAnswered++;
+            }
+            return new Node(element, null);
+        }
+
+        // children with the same name are written together, in the order the names appear
+        ArrayList<String> names = new ArrayList<String>();
+        for (int i = 0; i < element.getNumChildren(); i++) {
+            String name = element.getChildAt(i).getName();
+            if (!names.contains(name)) {
+                names.add(name);
+            }
+        }
+        ArrayList<Node> children = new ArrayList<Node>(element.getNumChildren());
+        for (String name : names) {
+            for (int i = 0; i < element.getNumChildren(); i++) {
+                TreeElement child = element.getChildAt(i);
+                if (name.equals(child.getName())) {
+                    Node copy = copyNode(child);
+                    if (copy != null) {
+                        children.add(copy);
+                    }
+                }
+            }
+        }
+        return new Node(element, children.toArray(new Node[children.size()]));
+    }
+
+
+    /**
+     * @param instanceFile saved instance xml, replaced if it exists
+     * @return md5 hash of the file written, or null if it couldn't be written
+     */
+    public String exportInstance(File instanceFile) {
+        long start = System.currentTimeMillis();
+
+        MessageDigest md;
+        try {
+            md = MessageDigest.getInstance(FileUtils.MD5);
+        } catch (NoSuchAlgorithmException e) {
+            Log.e(t, "Unsupported digest algorithm " + FileUtils.MD5);
+            return null;
+        }
+
+        File tmp = null;
+        try {
+            tmp = File.createTempFile("." + instanceFile.getName(), ".tmp",
+                    instanceFile.getParentFile());
+            FileOutputStream fos = new FileOutputStream(tmp);
+            try {
+                DigestOutputStream dos =
+                        new DigestOutputStream(new BufferedOutputStream(fos, 8192), md);
+                mSerializer = Xml.newSerializer();
+                mSerializer.setOutput(dos, ENCODING);
+                writeDocument();
+                mSerializer.flush();
+                dos.flush();
+                fos.getFD().sync();
+            } finally {
+                mSerializer = null;
+                fos.close();
+            }
+
+            if (tmp.renameTo(instanceFile)) {
+                Log.i(t, "Exported " + instanceFile.getName() + " in "
+                        + (System.currentTimeMillis() - start) + "ms");
+                return FileUtils.toHex(md.digest());
+            }
+            Log.e(t, "Failed to rename " + tmp.getAbsolutePath());
+        } catch (IOException e) {
+            Log.e(t, "Cannot write " + instanceFile.getAbsolutePath());
+            e.printStackTrace();
+        }
+
+        if (tmp != null) {
+            tmp.delete();
+        }
+        return null;
+    }
+
+
+    /**
+     * @return name of the instance's root node, or null if it has none
+     */
+    public String getRootName() {
+        return mRoot == null ? null : mRoot.name;
+    }
+
+
+    /**
+     * @return number of relevant questions of the form
+     */
+    public int getQuestionCount() {
+        return mQuestions;
+    }
+
+
+    /**
+     * @return number of relevant questions of the form with an answer
+     */
+    public int getAnswerCount() {
+        return mAnswered;
+    }
+
+
+    /**
+     * @param names names of the questions to read
+     * @return answers to the named questions, separated by spaces
+     */
+    public String getAnswerText(Collection<String> names) {
+        StringBuilder text = new StringBuilder();
+        if (mRoot != null) {
+            appendAnswerText(mRoot, names, text);
+        }
+        return text.toString().trim();
+    }
+
+
+    private static void appendAnswerText(Node node, Collection<String> names, StringBuilder text) {
+        if (node.value != null) {
+            if (names.contains(node.name)) {
+                text.append(node.value.getDisplayText()).append(' ');
+            }
+            return;
+        }
+        for (int i = 0; i < node.children.length; i++) {
+            appendAnswerText(node.children[i], names, text);
+        }
+    }
+
+
+    private void writeDocument() throws IOException {
+        mSerializer.startDocument(ENCODING, null);
+        for (int i = 0; i < mPrefixes.length; i++) {
+            mSerializer.setPrefix(mPrefixes[i], mNamespaces[i]);
+        }
+        if (mSchema != null) {
+            mSerializer.setPrefix("", mSchema);
+        }
+        if (mRoot != null) {
+            writeNode(mRoot, mSchema);
+        }
+        mSerializer.endDocument();
+    }
+
+
+    private void writeNode(Node node, String namespace) throws IOException {
+        mSerializer.startTag(namespace, node.name);
+        for (int i = 0; i < node.attributes.length; i += 3) {
+            mSerializer.attribute(node.attributes[i], node.attributes[i + 1],
+                    node.attributes[i + 2]);
+        }
+
+        if (node.value != null) {
+            writeValue(node);
+        } else {
+            for (int i = 0; i < node.children.length; i++) {
+                writeNode(node.children[i], null);
+            }
+        }
+
+        mSerializer.endTag(namespace, node.name);
+    }
+
+
+    private void writeValue(Node node) throws IOException {
+        Object serialized = mAnswerSerializer.serializeAnswerData(node.value, node.dataType);
+        if (serialized instanceof String) {
+            mSerializer.text((String) serialized);
+        } else if (serialized instanceof Element) {
+            ((Element) serialized).writeChildren(mSerializer);
+        } else {
+            throw new RuntimeException("Can't handle serialized output for "
+                    + node.value.toString() + ", " + serialized);
+        }
+    }
+
+}
@@ -0,0 +1,230 @@
+/*
+ * Copyright (C) 2009 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.odk.collect.android.logic;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.HashMap;
+import java.util.HashSet;
+
+import org.javarosa.core.model.Constants;
+import org.javarosa.core.model.FormDef;
+import org.javarosa.core.model.data.StringData;
+import org.javarosa.core.model.instance.TreeElement;
+import org.javarosa.core.model.instance.TreeReference;
+import org.javarosa.core.model.util.restorable.RestoreUtils;
+import org.xmlpull.v1.XmlPullParser;
+import org.xmlpull.v1.XmlPullParserException;
+
+import android.util.Log;
+import android.util.Xml;
+
+/**
+ * Fills a form's blank instance with a saved instance file. The file is pull parsed and each
+ * value is written straight into the form's instance, so the saved instance is never held in
+ * memory as bytes or as a tree. Follows the same rules as {@link TreeElement#populate}: repeats
+ * are rebuilt from their templates, and groups missing from the file are marked not relevant.
+ *
+ * @author Carl Hartung (carlhartung@gmail.com)
+ */
+public class InstanceImporter {
+    private final static String t = "InstanceImporter";
+
+    private final static String JAVAROSA_NAMESPACE = "http://openrosa.org/javarosa";
+
+    private final FormDef mForm;
+    private XmlPullParser mParser;
+    private int mRepeats;
+
+
+    /**
+     * @param fd initialized form whose instance is still blank
+     */
+    public InstanceImporter(FormDef fd) {
+        mForm = fd;
+    }
+
+
+    /**
+     * @param instanceFile saved instance xml
+     * @return false if the file can't be read or belongs to another form
+     */
+    public boolean importInstance(File instanceFile) {
+        long start = System.currentTimeMillis();
+        mRepeats = 0;
+
+        InputStream is = null;
+        try {
+            is = new BufferedInputStream(new FileInputStream(instanceFile), 8192);
+            mParser = Xml.newPullParser();
+            mParser.setFeature(XmlPullParser.FEATURE_PROCESS_NAMESPACES, true);
+            mParser.setInput(is, null);
+
+            TreeElement root = mForm.getInstance().getRoot();
+            if (mParser.nextTag() != XmlPullParser.START_TAG
+                    || !root.getName().equals(mParser.getName())) {
+                // weak check for matching forms
+                Log.e(t, "Saved form instance does not match template form definition");
+                return false;
+            }
+            importElement(root);
+
+            Log.i(t, "Imported " + instanceFile.getName() + " with " + mRepeats + " repeats in "
+                    + (System.currentTimeMillis() - start) + "ms");
+            return true;
+        } catch (XmlPullParserException e) {
+            Log.e(t, "Cannot parse " + instanceFile.getAbsolutePath());
+            e.printStackTrace();
+        } catch (IOException e) {
+            Log.e(t, "Cannot read " + instanceFile.getAbsolutePath());
+            e.printStackTrace();
+        } finally {
+            mParser = null;
+            if (is != null) {
+                try {
+                    is.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+        return false;
+    }
+
+
+    /**
+     * Copy the element the parser is on into the node. Leaves the parser on the element's end
+     * tag.
+     */
+    private void importElement(TreeElement node) throws XmlPullParserException, IOException {
+        if (node.isLeaf()) {
+            importValue(node);
+        } else {
+            importChildren(node);
+        }
+    }
+
+
+    private void importValue(TreeElement node) throws XmlPullParserException, IOException {
+        StringBuffer text = new StringBuffer();
+        boolean hasElements = false;
+
+        int depth = mParser.getDepth();
+        int event;
+        while ((event = next()) != XmlPullParser.END_TAG || mParser.getDepth() > depth) {
+            if (event == XmlPullParser.START_TAG) {
+                hasElements = true;
+            } else if (event == XmlPullParser.TEXT && !hasElements) {
+                text.append(mParser.getText());
+            }
+        }
+
+        // elements with children never carry a value. text is trimmed, as javarosa's importer
+        // does, so pretty printed or hand edited instances import the same answers
+        String value = text.toString().trim();
+        if (hasElements || value.length() == 0) {
+            node.setValue(null);
+        } else if (node.dataType == Constants.DATATYPE_TEXT
+                || node.dataType == Constants.DATATYPE_NULL) {
+            node.setValue(new StringData(value));
+        } else {
+            node.setValue(RestoreUtils.xfFact.parseData(value, node.dataType, node.getRef(),
+                    mForm));
+        }
+    }
+
+
+    private void importChildren(TreeElement node) throws XmlPullParserException, IOException {
+        // repeats are rebuilt from their templates
+        for (int i = 0; i < node.getNumChildren(); i++) {
+            TreeElement child = node.getChildAt(i);
+            if (child.repeatable && child.getMult() != TreeReference.INDEX_TEMPLATE) {
+                node.removeChildAt(i);
+                i--;
+            }
+        }
+
+        HashSet<String> seen = new HashSet<String>();
+        HashMap<String, Integer> repeatCounts = new HashMap<String, Integer>();
+
+        int depth = mParser.getDepth();
+        int event;
+        while ((event = next()) != XmlPullParser.END_TAG || mParser.getDepth() > depth) {
+            if (event != XmlPullParser.START_TAG) {
+                continue;
+            }
+
+            String name = mParser.getName();
+            TreeElement template = node.getChild(name, TreeReference.INDEX_TEMPLATE);
+            TreeElement child = null;
+
+            if (mParser.getAttributeValue(JAVAROSA_NAMESPACE, "template") != null) {
+                // templates in the file are ignored, ours come from the form
+            } else if (template != null && template.repeatable) {
+                Integer count = repeatCounts.get(name);
+                int mult = count == null ? 0 : count.intValue();
+                repeatCounts.put(name, Integer.valueOf(mult + 1));
+
+                child = template.deepCopy(true);
+                child.setMult(mult);
+                node.addChild(child);
+                mRepeats++;
+            } else if (seen.add(name)) {
+                // only the first element with a name fills a non repeat
+                child = node.getChild(name, 0);
+            }
+
+            if (child != null) {
+                importElement(child);
+            } else {
+                skipElement();
+            }
+        }
+
+        // groups and questions missing from the file weren't relevant when it was saved
+        for (int i = 0; i < node.getNumChildren(); i++) {
+            TreeElement child = node.getChildAt(i);
+            if (!child.repeatable && !seen.contains(child.getName())) {
+                child.setRelevant(false);
+            }
+        }
+    }
+
+
+    private void skipElement() throws XmlPullParserException, IOException {
+        int depth = mParser.getDepth();
+        while (next() != XmlPullParser.END_TAG || mParser.getDepth() > depth) {
+            // skip everything inside
+        }
+    }
+
+
+    /**
+     * Advance the parser, failing on a file that ends inside an element.
+     */
+    private int next() throws XmlPullParserException, IOException {
+        int event = mParser.next();
+        if (event == XmlPullParser.END_DOCUMENT) {
+            throw new XmlPullParserException("Unexpected end of instance");
+        }
+        return event;
+    }
+
+}
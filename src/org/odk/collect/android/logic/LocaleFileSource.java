@@ -0,0 +1,176 @@
+/*
+ * Copyright (C) 2009 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.odk.collect.android.logic;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import org.javarosa.core.services.locale.LocaleDataSource;
+import org.javarosa.core.util.OrderedHashtable;
+import org.javarosa.core.util.externalizable.DeserializationException;
+import org.javarosa.core.util.externalizable.ExtUtil;
+import org.javarosa.core.util.externalizable.ExtWrapMap;
+import org.javarosa.core.util.externalizable.PrototypeFactory;
+import org.odk.collect.android.utilities.FileUtils;
+
+import android.util.Log;
+
+/**
+ * Text for one language of a cached form, kept in its own file in the cache folder instead of
+ * inside the form binary. The {@link org.javarosa.core.services.locale.Localizer} only asks for
+ * the text of the language it switches to, so languages that are never shown are never read.
+ *
+ * @author Carl Hartung (carlhartung@gmail.com)
+ */
+public class LocaleFileSource implements LocaleDataSource {
+    private final static String t = "LocaleFileSource";
+
+    private final static int MAGIC = 0x4f444b4c;
+    private final static int FORMAT_VERSION = 2;
+
+    private String mFileName;
+
+
+    /**
+     * Used when deserializing.
+     */
+    public LocaleFileSource() {
+    }
+
+
+    /**
+     * @param fileName name of a file in the cache folder written by {@link #write}
+     */
+    public LocaleFileSource(String fileName) {
+        mFileName = fileName;
+    }
+
+
+    /**
+     * Write a language's text to a hidden temporary file, sync it and rename it into place.
+     *
+     * @return true if the file was written
+     */
+    public static boolean write(File file, OrderedHashtable text) {
+        File tmp = null;
+        try {
+            tmp = File.createTempFile("." + file.getName(), ".tmp", file.getParentFile());
+            FileOutputStream fos = new FileOutputStream(tmp);
+            try {
+                DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(fos));
+                dos.writeInt(MAGIC);
+                dos.writeInt(FORMAT_VERSION);
+                ExtUtil.write(dos, new ExtWrapMap(text));
+                dos.flush();
+                fos.getFD().sync();
+            } finally {
+                fos.close();
+            }
+
+            if (tmp.renameTo(file)) {
+                return true;
+            }
+            Log.e(t, "Failed to rename " + tmp.getAbsolutePath());
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+
+        if (tmp != null) {
+            tmp.delete();
+        }
+        return false;
+    }
+
+
+    private File getFile() {
+        return new File(GlobalConstants.CACHE_PATH + mFileName);
+    }
+
+
+    /**
+     * Read the text from disk. Called by the localizer each time it switches to this language;
+     * the text isn't kept here afterwards.
+     */
+    public OrderedHashtable getLocalizedText() {
+        File file = getFile();
+        byte[] bytes = FileUtils.getFileAsBytes(file);
+        if (bytes != null) {
+            try {
+                DataInputStream dis = new DataInputStream(new ByteArrayInputStream(bytes));
+                if (dis.readInt() == MAGIC && dis.readInt() == FORMAT_VERSION) {
+                    return (OrderedHashtable) ExtUtil.read(dis, new ExtWrapMap(String.class,
+                            String.class, true), ExtUtil.defaultPrototypes());
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+            } catch (DeserializationException e) {
+                e.printStackTrace();
+            }
+        }
+
+        // the file was checked when the form was read, so it has been damaged since
+        Log.e(t, "Cannot read " + file.getAbsolutePath());
+        return new OrderedHashtable();
+    }
+
+
+    /**
+     * Fails if the text file has gone missing, so the form binary is parsed from xml again
+     * instead of being used without its text.
+     */
+    public void readExternal(DataInputStream in, PrototypeFactory pf) throws IOException,
+            DeserializationException {
+        mFileName = ExtUtil.readString(in);
+        if (!isCurrent(getFile())) {
+            throw new DeserializationException("Missing or stale " + mFileName);
+        }
+    }
+
+
+    public void writeExternal(DataOutputStream out) throws IOException {
+        ExtUtil.writeString(out, mFileName);
+    }
+
+
+    private static boolean isCurrent(File file) {
+        if (!file.exists()) {
+            return false;
+        }
+        DataInputStream dis = null;
+        try {
+            dis = new DataInputStream(new FileInputStream(file));
+            return dis.readInt() == MAGIC && dis.readInt() == FORMAT_VERSION;
+        } catch (IOException e) {
+            return false;
+        } finally {
+            if (dis != null) {
+                try {
+                    dis.close();
+                } catch (IOException e) {
+                    Log.e(t, "Cannot close " + file.getAbsolutePath());
+                }
+            }
+        }
+    }
+
+}
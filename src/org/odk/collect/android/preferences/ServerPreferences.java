@@ -32,6 +32,7 @@ public class ServerPreferences extends PreferenceActivity implements
     public static String KEY_SERVER = "server";
     public static String KEY_USERNAME = "username";
     public static String KEY_PASSWORD = "password";
+    public static String KEY_SEARCH_FIELDS = "search_fields";
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
@@ -41,6 +42,7 @@ public class ServerPreferences extends PreferenceActivity implements
         updateServer();
         updateUsername();
         updatePassword();
+        updateSearchFields();
     }
 
 
@@ -66,6 +68,8 @@ public class ServerPreferences extends PreferenceActivity implements
             updateUsername();
         } else if (key.equals(KEY_PASSWORD)) {
             updatePassword();
+        } else if (key.equals(KEY_SEARCH_FIELDS)) {
+            updateSearchFields();
         }
     }
 
@@ -100,5 +104,12 @@ public class ServerPreferences extends PreferenceActivity implements
     }
 
 
+    private void updateSearchFields() {
+        EditTextPreference etp =
+                (EditTextPreference) this.getPreferenceScreen().findPreference(KEY_SEARCH_FIELDS);
+        etp.setSummary(etp.getText());
+    }
+
+
 
 }
@@ -0,0 +1,88 @@
+/*
+ * Copyright (C) 2009 University of Washington
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.odk.collect.android.tasks;
+
+import java.util.Arrays;
+
+import org.odk.collect.android.application.Collect;
+import org.odk.collect.android.database.FileReconciler;
+import org.odk.collect.android.listeners.DeleteFilesListener;
+
+import android.os.AsyncTask;
+
+/**
+ * Background task for deleting forms and instances chosen by row id. Only the chosen files are
+ * touched.
+ * 
+ * @author Carl Hartung (carlhartung@gmail.com)
+ */
+public class DeleteFilesTask extends AsyncTask<Long, Integer, Integer> {
+
+    private DeleteFilesListener mDeleteListener;
+
+    // number deleted, kept until a listener is there to be told
+    private Integer mResult;
+
+
+    @Override
+    protected Integer doInBackground(Long... ids) {
+        FileReconciler fr = Collect.getInstance().getFileReconciler();
+        return fr.delete(Arrays.asList(ids), new FileReconciler.DeleteProgress() {
+            public void deleted(int done, int total) {
+                publishProgress(done, total);
+            }
+        });
+    }
+
+
+    @Override
+    protected void onPostExecute(Integer result) {
+        synchronized (this) {
+            mResult = result;
+            if (mDeleteListener != null) {
+                mDeleteListener.deleteComplete(result.intValue());
+                mResult = null;
+            }
+        }
+    }
+
+
+    @Override
+    protected void onProgressUpdate(Integer... values) {
+        synchronized (this) {
+            if (mDeleteListener != null) {
+                // update progress and total
+                mDeleteListener.progressUpdate(values[0].intValue(), values[1].intValue());
+            }
+        }
+    }
+
+
+    /**
+     * A listener set after the task finished, such as after the screen rotated, is told the
+     * result straight away.
+     */
+    public void setDeleteListener(DeleteFilesListener dl) {
+        synchronized (this) {
+            mDeleteListener = dl;
+            if (mDeleteListener != null && mResult != null) {
+                mDeleteListener.deleteComplete(mResult.intValue());
+                mResult = null;
+            }
+        }
+    }
+}
@@ -26,6 +26,7 @@ import java.net.URL;
 import java.net.URLConnection;
 import java.util.ArrayList;
 
+import org.odk.collect.android.application.Collect;
 import org.odk.collect.android.listeners.FormDownloaderListener;
 import org.odk.collect.android.logic.GlobalConstants;
 
@@ -119,6 +120,11 @@ public class FormDownloaderTask extends AsyncTask<String, Integer, ArrayList<Str
             is.close();
             mDownloadedForms.add(url);
 
+            // compile new forms before anyone opens them
+            if (!name.equals(GlobalConstants.CACHE_LIST)) {
+                Collect.getInstance().getFormPrecompiler().compile(f.getAbsolutePath());
+            }
+
         } catch (IOException e) {
             e.printStackTrace();
             return false;
@@ -16,30 +16,29 @@
 
 package org.odk.collect.android.tasks;
 
-import java.io.DataInputStream;
-import java.io.DataOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
 import java.io.IOException;
 
 import org.javarosa.core.model.FormDef;
 import org.javarosa.core.model.condition.EvaluationContext;
-import org.javarosa.core.model.instance.TreeElement;
-import org.javarosa.core.model.instance.TreeReference;
-import org.javarosa.core.services.PrototypeManager;
-import org.javarosa.core.util.externalizable.DeserializationException;
-import org.javarosa.core.util.externalizable.ExtUtil;
 import org.javarosa.form.api.FormEntryController;
 import org.javarosa.form.api.FormEntryModel;
-import org.javarosa.xform.parse.XFormParser;
 import org.javarosa.xform.util.XFormUtils;
+import org.odk.collect.android.application.Collect;
 import org.odk.collect.android.listeners.FormLoaderListener;
-import org.odk.collect.android.logic.GlobalConstants;
+import org.odk.collect.android.logic.FormDefCache;
+import org.odk.collect.android.logic.InstanceImporter;
 import org.odk.collect.android.utilities.FileUtils;
+import org.odk.collect.android.utilities.FormDefSerializer;
+import org.odk.collect.android.utilities.InstanceJournal;
+import org.odk.collect.android.utilities.InstanceSnapshot;
+import org.odk.collect.android.utilities.PhaseTimer;
+import org.odk.collect.android.utilities.TimingLog;
 
 import android.os.AsyncTask;
+import android.os.Process;
 import android.util.Log;
 
 /**
@@ -49,7 +48,20 @@ import android.util.Log;
  * @author Yaw Anokwa (yanokwa@gmail.com)
  */
 public class FormLoaderTask extends AsyncTask<String, String, FormEntryController> {
+    private final static String t = "FormLoaderTask";
+
+    // guards the parser state below. the xform parser keeps its own state in static fields
+    private final static Object PARSE_LOCK = new Object();
+    private static boolean sParsing;
+    private static int sParserTid;
+    private static int sWaitingLoaders;
+
     FormLoaderListener mStateListener;
+    private PhaseTimer mTimer;
+
+    // hashes of the files loaded, so the main thread doesn't have to read them again
+    private String mFormHash;
+    private String mInstanceHash;
 
 
     /**
@@ -60,35 +72,44 @@ public class FormLoaderTask extends AsyncTask<String, String, FormEntryControlle
     protected FormEntryController doInBackground(String... path) {
         FormEntryController fec = null;
         FormDef fd = null;
-        FileInputStream fis = null;
 
         String formPath = path[0];
         String instancePath = path[1];
 
         File formXml = new File(formPath);
-        File formBin =
-                new File(GlobalConstants.CACHE_PATH + FileUtils.getMd5Hash(formXml) + ".formdef");
-
-        if (formBin.exists()) {
-            // if we have binary, deserialize binary
-            fd = deserializeFormDef(formBin);
+        PhaseTimer timer = new PhaseTimer(PhaseTimer.LOAD, formXml.getName());
+        mTimer = timer;
+
+        // modules and the property manager are needed to load and initialize forms
+        Collect.getInstance().waitForBootstrap();
+        timer.mark("bootstrap");
+
+        String formHash = FileUtils.getMd5Hash(formXml);
+        mFormHash = formHash;
+        File formBin = FormDefSerializer.getFormDefFile(formHash);
+        timer.mark("hash");
+
+        FormDefCache cache = Collect.getInstance().getFormDefCache();
+        fd = cache.checkout(formHash);
+
+        if (fd != null) {
+            // already loaded by an earlier session
+            Log.i(t, "Using cached form " + formHash);
+            timer.mark("cache");
+        } else if ((fd = FormDefSerializer.read(formBin)) != null) {
+            // we had a current binary
+            cache.put(formHash, fd, formBin.length());
+            timer.mark("deserialize");
+        } else {
+            // no usable binary, read from xml
+            fd = parseFormDef(formXml, false);
             if (fd == null) {
                 return null;
             }
-        } else {
-            // no binary, read from xml
-            try {
-                fis = new FileInputStream(formXml);
-                fd = XFormUtils.getFormFromInputStream(fis);
-                if (fd == null) {
-                    return null;
-                }
-                fd.setEvaluationContext(new EvaluationContext());
-                serializeFormDef(fd, formPath);
-
-            } catch (FileNotFoundException e) {
-                e.printStackTrace();
-            }
+            timer.mark("parse");
+            FormDefSerializer.write(fd, formBin);
+            cache.put(formHash, fd, formBin.exists() ? formBin.length() : formXml.length());
+            timer.mark("serialize");
         }
 
         // create FormEntryController from formdef
@@ -98,124 +119,148 @@ public class FormLoaderTask extends AsyncTask<String, String, FormEntryControlle
         // import existing data into formdef
         if (instancePath != null) {
             fd.initialize(false);
-            importData(instancePath, fec);
+            timer.mark("initialize");
+            if (!importData(instancePath, formHash, fec)) {
+                cache.release(fd);
+                return null;
+            }
+            timer.mark("import");
         } else {
             fd.initialize(true);
+            timer.mark("initialize");
         }
 
+        TimingLog.append(timer);
+
         // clean up vars
-        fis = null;
+        cache = null;
         fd = null;
         formBin = null;
         formXml = null;
+        formHash = null;
         formPath = null;
         instancePath = null;
 
         return fec;
     }
     
-    public boolean importData(String filePath, FormEntryController fec) {
-
-        // convert files into a byte array
-        byte[] fileBytes = FileUtils.getFileAsBytes(new File(filePath));
-
-        // get the root of the saved and template instances
-        TreeElement savedRoot = XFormParser.restoreDataModel(fileBytes, null).getRoot();
-//        TreeElement templateRoot = mForm.getDataModel().getRoot().deepCopy(true);
-        TreeElement templateRoot = fec.getModel().getForm().getInstance().getRoot().deepCopy(true);
-
-        // weak check for matching forms
-        if (!savedRoot.getName().equals(templateRoot.getName()) || savedRoot.getMult() != 0) {
-            Log.e("asdf", "Saved form instance does not match template form definition");
+    /**
+     * Fill the form with a saved instance, from its snapshot if the snapshot is still current or
+     * else from the xml, then apply any changes journaled since the instance was saved.
+     * 
+     * @param formHash md5 hash of the form file, checked against the snapshot
+     */
+    public boolean importData(String filePath, String formHash, FormEntryController fec) {
+        FormDef fd = fec.getModel().getForm();
+        File instanceXml = new File(filePath);
+        mInstanceHash = FileUtils.getMd5Hash(instanceXml);
+
+        if (InstanceSnapshot.read(instanceXml, formHash, fd)) {
+            Log.i(t, "Restored " + instanceXml.getName() + " from snapshot");
+        } else if (!new InstanceImporter(fd).importInstance(instanceXml)) {
             return false;
-        } else {
-            // populate the data model
-            TreeReference tr = TreeReference.rootRef();
-            tr.add(templateRoot.getName(), TreeReference.INDEX_UNBOUND);
-            //DataModelTree.populateNode(templateRoot, savedRoot, tr, fec.getModel().getForm());
-            templateRoot.populate(savedRoot, fec.getModel().getForm());
-
-            // populated model to current form
-            // mForm.setDataModel(new DataModelTree(templateRoot));
-            fec.getModel().getForm().getInstance().setRoot(templateRoot);
-            
-            // fix any language issues
-            // : http://bitbucket.org/javarosa/main/issue/5/itext-n-appearing-in-restored-instances
-            if (fec.getModel().getLanguages() != null) {
-                fec.getModel().getForm().localeChanged(fec.getModel().getLanguage(), 
-                        fec.getModel().getForm().getLocalizer());                
-            }
-
-            return true;
+        }
+        // changes that can't be applied are kept rather than lost by loading without them
+        if (InstanceJournal.replay(instanceXml, formHash, mInstanceHash, fec) < 0) {
+            return false;
+        }
 
+        // fix any language issues
+        // : http://bitbucket.org/javarosa/main/issue/5/itext-n-appearing-in-restored-instances
+        if (fec.getModel().getLanguages() != null) {
+            fec.getModel().getForm().localeChanged(fec.getModel().getLanguage(), 
+                    fec.getModel().getForm().getLocalizer());                
         }
+
+        return true;
     }
 
 
     /**
-     * Read serialized {@link FormDef} from file and recreate as object.
+     * Parse a form from xml. The xform parser keeps its state in static fields, so only one form
+     * is parsed at a time. A form being opened is parsed before forms compiled in the background,
+     * and a background parse it has to wait for is raised to at least the default priority.
      * 
-     * @param formDef serialized FormDef file
-     * @return {@link FormDef} object
+     * @param formXml xml form file
+     * @param background true if no one is waiting for the form
+     * @return {@link FormDef} object or null if the form can't be read
      */
-    public FormDef deserializeFormDef(File formDef) {
-
-        // TODO: any way to remove reliance on jrsp?
-
-        // need a list of classes that formdef uses
-        PrototypeManager.registerPrototypes(GlobalConstants.SERIALIABLE_CLASSES);
+    public static FormDef parseFormDef(File formXml, boolean background) {
+        acquireParser(background);
         FileInputStream fis = null;
-        FormDef fd = null;
         try {
-            // create new form def
-            fd = new FormDef();
-            fis = new FileInputStream(formDef);
-            DataInputStream dis = new DataInputStream(fis);
-
-            // read serialized formdef into new formdef
-            fd.readExternal(dis, ExtUtil.defaultPrototypes());
-            dis.close();
-
+            fis = new FileInputStream(formXml);
+            FormDef fd = XFormUtils.getFormFromInputStream(fis);
+            if (fd != null) {
+                fd.setEvaluationContext(new EvaluationContext());
+            }
+            return fd;
         } catch (FileNotFoundException e) {
             e.printStackTrace();
-        } catch (IOException e) {
-            e.printStackTrace();
-        } catch (DeserializationException e) {
-            e.printStackTrace();
+            return null;
+        } finally {
+            if (fis != null) {
+                try {
+                    fis.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+            releaseParser(background);
         }
+    }
 
-        return fd;
+
+    private static void acquireParser(boolean background) {
+        synchronized (PARSE_LOCK) {
+            if (!background) {
+                sWaitingLoaders++;
+                if (sParsing) {
+                    // the user is waiting, though task threads run at background priority
+                    raisePriority(sParserTid, Math.min(Process.THREAD_PRIORITY_DEFAULT, Process
+                            .getThreadPriority(Process.myTid())));
+                }
+            }
+            // background parses let every waiting loader go first
+            while (sParsing || (background && sWaitingLoaders > 0)) {
+                try {
+                    PARSE_LOCK.wait();
+                } catch (InterruptedException e) {
+                    // keep waiting, the parser can't be shared
+                }
+            }
+            if (!background) {
+                sWaitingLoaders--;
+            }
+            sParsing = true;
+            sParserTid = Process.myTid();
+        }
     }
 
 
-    /**
-     * Write the FormDef to the file system as a binary blog.
-     * 
-     * @param filepath path to the form file
-     */
-    public void serializeFormDef(FormDef fd, String filepath) {
-        // if cache folder is missing, create it.
-        if (FileUtils.createFolder(GlobalConstants.CACHE_PATH)) {
+    private static void releaseParser(boolean background) {
+        synchronized (PARSE_LOCK) {
+            sParsing = false;
+            PARSE_LOCK.notifyAll();
+        }
+        if (background) {
+            // back down, in case a loader raised this thread while it was parsing
+            Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+        }
+    }
 
-            // calculate unique md5 identifier
-            String hash = FileUtils.getMd5Hash(new File(filepath));
-            File formDef = new File(GlobalConstants.CACHE_PATH + hash + ".formdef");
 
-            // formdef does not exist, create one.
-            if (!formDef.exists()) {
-                FileOutputStream fos;
-                try {
-                    fos = new FileOutputStream(formDef);
-                    DataOutputStream dos = new DataOutputStream(fos);
-                    fd.writeExternal(dos);
-                    dos.flush();
-                    dos.close();
-                } catch (FileNotFoundException e) {
-                    e.printStackTrace();
-                } catch (IOException e) {
-                    e.printStackTrace();
-                }
+    /**
+     * Raise a thread to a priority if it is below it. Lower values are more favorable.
+     */
+    private static void raisePriority(int tid, int priority) {
+        try {
+            if (Process.getThreadPriority(tid) > priority) {
+                Process.setThreadPriority(tid, priority);
             }
+        } catch (RuntimeException e) {
+            // the thread may have just finished
+            Log.i(t, "Cannot raise parser priority: " + e.getMessage());
         }
     }
 
@@ -223,11 +268,27 @@ public class FormLoaderTask extends AsyncTask<String, String, FormEntryControlle
     @Override
     protected void onPostExecute(FormEntryController fec) {
         synchronized (this) {
-            if (mStateListener != null) mStateListener.loadingComplete(fec);
+            if (mStateListener != null) mStateListener.loadingComplete(fec, mTimer);
         }
     }
 
 
+    /**
+     * @return md5 hash of the form file, once loaded
+     */
+    public String getFormHash() {
+        return mFormHash;
+    }
+
+
+    /**
+     * @return md5 hash of the instance xml as loaded, or null if no instance was loaded
+     */
+    public String getInstanceHash() {
+        return mInstanceHash;
+    }
+
+
     public void setFormLoaderListener(FormLoaderListener sl) {
         synchronized (this) {
             mStateListener = sl;
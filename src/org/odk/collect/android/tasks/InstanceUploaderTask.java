@@ -89,6 +89,10 @@ public class InstanceUploaderTask extends AsyncTask<String, Integer, ArrayList<S
             for (int j = 0; j < files.length; j++) {
                 File f = files[j];
                 FileBody fb;
+                if (f.getName().startsWith(".")) {
+                    // hidden files are local caches, not part of the submission
+                    continue;
+                }
                 if (f.getName().endsWith(".xml")) {
                     fb = new FileBody(f, "text/xml");
                     if (fb.getContentLength() <= MAX_BYTES) {
@@ -14,26 +14,31 @@
 
 package org.odk.collect.android.tasks;
 
-import java.io.BufferedWriter;
 import java.io.File;
-import java.io.FileWriter;
-import java.io.IOException;
-import java.io.InputStream;
+import java.util.ArrayList;
 
 import org.javarosa.core.model.FormDef;
-import org.javarosa.core.model.FormIndex;
 import org.javarosa.core.model.instance.FormInstance;
-import org.javarosa.core.services.transport.payload.ByteArrayPayload;
 import org.javarosa.form.api.FormEntryController;
-import org.javarosa.form.api.FormEntryModel;
-import org.javarosa.model.xform.XFormSerializingVisitor;
 import org.odk.collect.android.activities.FormEntryActivity;
+import org.odk.collect.android.application.Collect;
 import org.odk.collect.android.database.FileDbAdapter;
 import org.odk.collect.android.listeners.FormSavedListener;
-
+import org.odk.collect.android.logic.FormValidator;
+import org.odk.collect.android.logic.InstanceExporter;
+import org.odk.collect.android.preferences.ServerPreferences;
+import org.odk.collect.android.utilities.FileUtils;
+import org.odk.collect.android.utilities.InstanceJournal;
+import org.odk.collect.android.utilities.InstanceSnapshot;
+import org.odk.collect.android.utilities.PhaseTimer;
+import org.odk.collect.android.utilities.TimingLog;
+
+import android.content.ContentValues;
 import android.content.Context;
+import android.content.SharedPreferences;
 import android.database.Cursor;
 import android.os.AsyncTask;
+import android.preference.PreferenceManager;
 import android.util.Log;
 
 /**
@@ -43,18 +48,33 @@ import android.util.Log;
  * @author Yaw Anokwa (yanokwa@gmail.com)
  */
 public class SaveToDiskTask extends AsyncTask<Void, String, Integer> {
+    private final static String t = "SaveToDiskTask";
 
     private FormSavedListener mSavedListener;
+    private String mFormPath;
     private String mInstancePath;
     private Context mContext;
     private Boolean mMarkCompleted;
     private FormEntryController mFormEntryController = FormEntryActivity.mFormEntryController;
+    private PhaseTimer mTimer;
+    private InstanceJournal mJournal;
+    private FormValidator mValidator;
+    private InstanceExporter mSnapshot;
+    private long mJournalMark;
 
     public static final int SAVED = 500;
     public static final int SAVE_ERROR = 501;
     public static final int VALIDATE_ERROR = 502;
     public static final int VALIDATED = 503;
 
+    // one save writes at a time. saves are numbered as they are created, so an autosave copied
+    // before a later save was written doesn't overwrite it.
+    private final static Object SAVE_LOCK = new Object();
+    private static int sCreated;
+    private static int sWritten;
+
+    private final int mNumber = ++sCreated;
+
 
     /**
      * Initialize {@link FormEntryController} with {@link FormDef} from binary or from XML. If given
@@ -62,56 +82,132 @@ public class SaveToDiskTask extends AsyncTask<Void, String, Integer> {
      */
     @Override
     protected Integer doInBackground(Void... nothing) {
+        synchronized (SAVE_LOCK) {
+            if (mSnapshot != null) {
+                return saveSnapshot();
+            }
+            return save();
+        }
+    }
+
+
+    private Integer save() {
+        mTimer = new PhaseTimer(PhaseTimer.SAVE, new File(mFormPath).getName());
+
+        // every save the user asks for writes the xml, which clears the journal
         int validateStatus = validateAnswers(mMarkCompleted);
         if (validateStatus != VALIDATED) {
             return validateStatus;
         }
+        mTimer.mark("validate");
 
         mFormEntryController.getModel().getForm().postProcessInstance();
+        mTimer.mark("postprocess");
         if (exportData(mInstancePath, mContext, mMarkCompleted)) {
+            sWritten = Math.max(sWritten, mNumber);
+            TimingLog.append(mTimer);
             return SAVED;
         }
         return SAVE_ERROR;
     }
 
 
-    public boolean exportData(String instancePath, Context context, boolean markCompleted) {
+    /**
+     * Write the copy of the instance as an incomplete instance. Answers aren't validated and the
+     * instance isn't post processed, the form is still being filled in.
+     */
+    private Integer saveSnapshot() {
+        if (mNumber < sWritten) {
+            Log.i(t, "Skipping autosave, a later save has been written");
+            return SAVE_ERROR;
+        }
+        mTimer = new PhaseTimer(PhaseTimer.AUTOSAVE, new File(mFormPath).getName());
 
-        ByteArrayPayload payload;
-        try {
+        File instanceXml = new File(mInstancePath);
+        String instanceHash = mSnapshot.exportInstance(instanceXml);
+        if (instanceHash == null) {
+            return SAVE_ERROR;
+        }
+        sWritten = mNumber;
+        mark("write");
 
-            // assume no binary data inside the model.
-            FormInstance datamodel = mFormEntryController.getModel().getForm().getInstance();
-            XFormSerializingVisitor serializer = new XFormSerializingVisitor();
-            payload = (ByteArrayPayload) serializer.createSerializedPayload(datamodel);
+        if (mJournal != null) {
+            mJournal.rebase(mJournalMark, instanceHash);
+        }
+        mark("journal");
+
+        // the binary copy is only written from the live instance
+        InstanceSnapshot.delete(instanceXml);
+        updateDatabase(mInstancePath, false, instanceHash);
+        updateMetadata(mInstancePath, mSnapshot);
+        TimingLog.append(mTimer);
+        return SAVED;
+    }
 
-            // write out xml
-            exportXmlFile(payload, instancePath);
 
-        } catch (IOException e) {
-            Log.e("savetodisk", "Error creating serialized payload");
-            e.printStackTrace();
+    /**
+     * Stop autosaves that haven't been written yet, and wait for one being written to finish.
+     * Call before deleting an instance that is being autosaved.
+     */
+    public static void discardAutosaves() {
+        synchronized (SAVE_LOCK) {
+            sWritten = ++sCreated;
+        }
+    }
+
+
+    public boolean exportData(String instancePath, Context context, boolean markCompleted) {
+
+        // assume no binary data inside the model.
+        InstanceExporter exporter =
+                new InstanceExporter(mFormEntryController.getModel().getForm());
+        String instanceHash = exporter.exportInstance(new File(instancePath));
+        if (instanceHash == null) {
             return false;
         }
+        mark("write");
+
+        // the xml now holds everything the journal did
+        if (mJournal != null) {
+            mJournal.clear(instanceHash);
+        }
+
+        // binary copy of the answers makes resuming this instance faster
+        exportSnapshot(instancePath, instanceHash);
+        mark("snapshot");
+
+        updateDatabase(instancePath, markCompleted, instanceHash);
+        updateMetadata(instancePath, exporter);
+        return true;
+    }
+
+
+    /**
+     * @param instanceHash md5 hash of the instance file if it was just written, or null to hash
+     *            the file
+     */
+    private void updateDatabase(String instancePath, boolean markCompleted, String instanceHash) {
+        if (instanceHash == null) {
+            instanceHash = FileUtils.getMd5Hash(new File(instancePath));
+        }
 
-        FileDbAdapter fda = new FileDbAdapter(context);
-        fda.open();
+        FileDbAdapter fda = Collect.getInstance().getFileDbAdapter();
         File f = new File(instancePath);
         Cursor c = fda.fetchFilesByPath(f.getAbsolutePath(), null);
         if (!markCompleted) {
             if (c != null && c.getCount() == 0) {
                 fda.createFile(instancePath, FileDbAdapter.TYPE_INSTANCE,
-                        FileDbAdapter.STATUS_INCOMPLETE);
+                        FileDbAdapter.STATUS_INCOMPLETE, instanceHash);
             } else {
-                fda.updateFile(instancePath, FileDbAdapter.STATUS_INCOMPLETE);
+                fda.updateFile(instancePath, FileDbAdapter.STATUS_INCOMPLETE, instanceHash);
             }
         } else {
             if (c != null && c.getCount() == 0) {
                 fda.createFile(instancePath, FileDbAdapter.TYPE_INSTANCE,
-                        FileDbAdapter.STATUS_COMPLETE);
+                        FileDbAdapter.STATUS_COMPLETE, instanceHash);
 
             } else {
-                fda.updateFile(instancePath, FileDbAdapter.STATUS_COMPLETE);
+                fda.updateFile(instancePath, FileDbAdapter.STATUS_COMPLETE, instanceHash);
             }
         }
         // clean up cursor
@@ -119,55 +215,90 @@ public class SaveToDiskTask extends AsyncTask<Void, String, Integer> {
             c.close();
         }
 
-        fda.close();
-        return true;
+        mark("database");
+    }
 
 
+    /**
+     * @return names of the questions whose answers are searched in the instance lists
+     */
+    private static ArrayList<String> getSearchFields() {
+        ArrayList<String> fields = new ArrayList<String>();
+        SharedPreferences settings =
+                PreferenceManager.getDefaultSharedPreferences(Collect.getInstance());
+        String value = settings.getString(ServerPreferences.KEY_SEARCH_FIELDS, "");
+        for (String field : value.split(",")) {
+            if (field.trim().length() > 0) {
+                fields.add(field.trim());
+            }
+        }
+        return fields;
     }
 
 
-    private boolean exportXmlFile(ByteArrayPayload payload, String path) {
+    /**
+     * Record what the lists need to know about the instance, and index the answers to the search
+     * fields so the instance can be found by them.
+     */
+    private void updateMetadata(String instancePath, InstanceExporter exporter) {
+        ArrayList<String> fields = getSearchFields();
+        String answers = fields.size() > 0 ? exporter.getAnswerText(fields) : "";
+
+        // pictures, audio and video saved next to the xml. hidden files are local caches
+        File instanceXml = new File(instancePath);
+        int attachments = 0;
+        long attachmentBytes = 0;
+        File[] files = instanceXml.getParentFile().listFiles();
+        if (files != null) {
+            for (File file : files) {
+                if (!file.getName().startsWith(".") && !file.equals(instanceXml)) {
+                    attachments++;
+                    attachmentBytes += file.length();
+                }
+            }
+        }
 
-        // create data stream
-        InputStream is = payload.getPayloadStream();
-        int len = (int) payload.getLength();
+        ContentValues cv = new ContentValues();
+        cv.put(FileDbAdapter.KEY_FORM_PATH, new File(mFormPath).getAbsolutePath());
+        cv.put(FileDbAdapter.KEY_FORM_HASH, FileUtils.getMd5Hash(new File(mFormPath)));
+        cv.put(FileDbAdapter.KEY_ROOT, exporter.getRootName());
+        cv.put(FileDbAdapter.KEY_QUESTIONS, exporter.getQuestionCount());
+        cv.put(FileDbAdapter.KEY_ANSWERED, exporter.getAnswerCount());
+        cv.put(FileDbAdapter.KEY_ATTACHMENTS, attachments);
+        cv.put(FileDbAdapter.KEY_ATTACHMENT_BYTES, attachmentBytes);
+        cv.put(FileDbAdapter.KEY_ANSWERS, answers);
+
+        FileDbAdapter fda = Collect.getInstance().getFileDbAdapter();
+        fda.updateMetadata(instancePath, cv);
+        fda.updateSearchWords(instancePath, answers);
+        mark("metadata");
+    }
 
-        // read from data stream
-        byte[] data = new byte[len];
-        try {
-            int read = is.read(data, 0, len);
-            if (read > 0) {
-                // write xml file
-                try {
-                    // String filename = path + "/" +
-                    // path.substring(path.lastIndexOf('/') + 1) + ".xml";
-                    BufferedWriter bw = new BufferedWriter(new FileWriter(path));
-                    bw.write(new String(data, "UTF-8"));
-                    bw.flush();
-                    bw.close();
-                    return true;
 
-                } catch (IOException e) {
-                    Log.e("savetodisk", "Error writing XML file");
-                    e.printStackTrace();
-                    return false;
-                }
-            }
-        } catch (IOException e) {
-            Log.e("savetodisk", "Error reading from payload data stream");
-            e.printStackTrace();
-            return false;
+    private void exportSnapshot(String instancePath, String instanceHash) {
+        File instanceXml = new File(instancePath);
+        String formHash = FileUtils.getMd5Hash(new File(mFormPath));
+        if (formHash == null) {
+            InstanceSnapshot.delete(instanceXml);
+            return;
         }
 
-        return false;
+        FormInstance instance = mFormEntryController.getModel().getForm().getInstance();
+        InstanceSnapshot.write(instance, instanceXml, formHash, instanceHash);
+    }
+
 
+    private void mark(String phase) {
+        if (mTimer != null) {
+            mTimer.mark(phase);
+        }
     }
 
 
     @Override
     protected void onPostExecute(Integer result) {
         synchronized (this) {
-            if (mSavedListener != null) mSavedListener.savingComplete(result);
+            if (mSavedListener != null) mSavedListener.savingComplete(result, mTimer);
         }
     }
 
@@ -179,7 +310,9 @@ public class SaveToDiskTask extends AsyncTask<Void, String, Integer> {
     }
 
 
-    public void setExportVars(String instancePath, Context context, Boolean completed) {
+    public void setExportVars(String formPath, String instancePath, Context context,
+            Boolean completed) {
+        mFormPath = formPath;
         mInstancePath = instancePath;
         mContext = context;
         mMarkCompleted = completed;
@@ -187,31 +320,50 @@ public class SaveToDiskTask extends AsyncTask<Void, String, Integer> {
 
 
     /**
-     * Goes through the entire form to make sure all entered answers comply with their constraints.
-     * Constraints are ignored on 'jump to', so answers can be outside of constraints. We don't
-     * allow saving to disk, though, until all answers conform to their constraints/requirements.
-     * 
-     * @param markCompleted
-     * @return
+     * @param journal journal of the instance being saved, or null if it has none
      */
+    public void setJournal(InstanceJournal journal) {
+        mJournal = journal;
+    }
 
-    private int validateAnswers(boolean markCompleted) {
-        mFormEntryController.jumpToIndex(FormIndex.createBeginningOfFormIndex());
-        FormEntryModel fem = mFormEntryController.getModel();
 
-        int event;
-        while ((event = mFormEntryController.stepToNextEvent()) != FormEntryController.EVENT_END_OF_FORM) {
-            if (event != FormEntryController.EVENT_QUESTION) {
-                continue;
-            } else {
-                int saveStatus =
-                        mFormEntryController.answerQuestion(fem.getQuestionPrompt()
-                                .getAnswerValue());
-                if (saveStatus == FormEntryController.ANSWER_CONSTRAINT_VIOLATED
-                        || (markCompleted && saveStatus != FormEntryController.ANSWER_OK)) {
-                    return saveStatus;
-                }
-            }
+    /**
+     * Save a copy of the instance instead of the instance, so it can go on being edited while the
+     * copy is written.
+     *
+     * @param snapshot copy of the instance
+     * @param journalMark {@link InstanceJournal#mark} taken with the copy
+     */
+    public void setSnapshot(InstanceExporter snapshot, long journalMark) {
+        mSnapshot = snapshot;
+        mJournalMark = journalMark;
+    }
+
+
+    /**
+     * @param validator validator kept for the form, so answers that already passed aren't checked
+     *            again
+     */
+    public void setValidator(FormValidator validator) {
+        mValidator = validator;
+    }
+
+
+    /**
+     * Makes sure all entered answers comply with their constraints. Constraints are ignored on
+     * 'jump to', so answers can be outside of constraints. We don't allow saving to disk, though,
+     * until all answers conform to their constraints/requirements.
+     * 
+     * @param markCompleted also require answers to required questions
+     * @return {@link #VALIDATED}, or the status of the first question that fails
+     */
+    private int validateAnswers(boolean markCompleted) {
+        if (mValidator == null) {
+            mValidator = new FormValidator(mFormEntryController);
+        }
+        ArrayList<FormValidator.Violation> violations = mValidator.validate(markCompleted);
+        if (violations.size() > 0) {
+            return violations.get(0).status;
         }
         return VALIDATED;
     }
@@ -0,0 +1,58 @@
+/*
+ * Copyright (C) 2009 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.odk.collect.android.utilities;
+
+/**
+ * Result of streaming a file through a message digest. Holds the hex encoded
+ * hash along with the number of bytes that were digested.
+ *
+ * @author Carl Hartung (carlhartung@gmail.com)
+ */
+public class DigestResult {
+    private String mAlgorithm;
+    private String mHash;
+    private long mSize;
+
+
+    public DigestResult(String algorithm, String hash, long size) {
+        mAlgorithm = algorithm;
+        mHash = hash;
+        mSize = size;
+    }
+
+
+    public String getAlgorithm() {
+        return mAlgorithm;
+    }
+
+
+    /**
+     * @return lowercase hex encoded digest, zero padded to the full digest length
+     */
+    public String getHash() {
+        return mHash;
+    }
+
+
+    /**
+     * @return number of bytes read from the file
+     */
+    public long getSize() {
+        return mSize;
+    }
+
+}
@@ -21,7 +21,8 @@ import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
-import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
@@ -38,6 +39,21 @@ import android.util.Log;
 public class FileUtils {
     private final static String t = "FileUtils";
 
+    public final static String MD5 = "MD5";
+
+    // size of the chunks files are read in while hashing
+    private final static int DIGEST_BUFFER_SIZE = 8192;
+
+    private final static char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+    // one direct buffer per thread, allocated once and reused for every file hashed
+    private final static ThreadLocal<ByteBuffer> sDigestBuffer = new ThreadLocal<ByteBuffer>() {
+        @Override
+        protected ByteBuffer initialValue() {
+            return ByteBuffer.allocateDirect(DIGEST_BUFFER_SIZE);
+        }
+    };
+
 
     public static ArrayList<String> getFoldersAsArrayList(String path) {
         ArrayList<String> mFolderList = new ArrayList<String>();
@@ -233,23 +249,81 @@ public class FileUtils {
     }
 
 
+    /**
+     * Md5 hash of the file. Unchanged files are answered from {@link HashCache} without being
+     * read.
+     */
     public static String getMd5Hash(File file) {
-        try {
-            MessageDigest md = MessageDigest.getInstance("MD5");
-            byte[] messageDigest = md.digest(getFileAsBytes(file));
-            BigInteger number = new BigInteger(1, messageDigest);
-            String md5 = number.toString(16);
-            while (md5.length() < 32)
-                md5 = "0" + md5;
-            return md5;
+        return HashCache.getMd5Hash(file);
+    }
 
+
+    /**
+     * Streams the file through the given digest algorithm in fixed size chunks, so hashing
+     * costs the same amount of memory regardless of the size of the file.
+     * 
+     * @param file file to digest
+     * @param algorithm any algorithm supported by {@link MessageDigest}, e.g. MD5 or SHA-1
+     * @return the digest and number of bytes read, or null if the file could not be read
+     */
+    public static DigestResult getDigest(File file, String algorithm) {
+        MessageDigest md;
+        try {
+            md = MessageDigest.getInstance(algorithm);
         } catch (NoSuchAlgorithmException e) {
-            Log.e("MD5", e.getMessage());
+            Log.e(t, "Unsupported digest algorithm " + algorithm);
             return null;
+        }
+
+        FileInputStream fis = null;
+        long size = 0;
+        try {
+            fis = new FileInputStream(file);
+            FileChannel fc = fis.getChannel();
+
+            // buffer is reused by every hash computed on this thread
+            ByteBuffer buffer = sDigestBuffer.get();
+            buffer.clear();
+            int read;
+            while ((read = fc.read(buffer)) != -1) {
+                buffer.flip();
+                md.update(buffer);
+                buffer.clear();
+                size += read;
+            }
 
+        } catch (FileNotFoundException e) {
+            Log.e(t, "Cannot find " + file.getName());
+            return null;
+        } catch (IOException e) {
+            Log.e(t, "Cannot read " + file.getName());
+            e.printStackTrace();
+            return null;
+        } finally {
+            if (fis != null) {
+                try {
+                    fis.close();
+                } catch (IOException e) {
+                    Log.e(t, "Cannot close input stream for " + file.getName());
+                }
+            }
         }
+
+        return new DigestResult(algorithm, toHex(md.digest()), size);
     }
 
 
+    /**
+     * Lowercase hex encoding of a digest, zero padded to two characters per byte.
+     */
+    public static String toHex(byte[] digest) {
+        char[] hex = new char[digest.length * 2];
+        for (int i = 0; i < digest.length; i++) {
+            int b = digest[i] & 0xff;
+            hex[i * 2] = HEX_DIGITS[b >>> 4];
+            hex[i * 2 + 1] = HEX_DIGITS[b & 0x0f];
+        }
+        return new String(hex);
+    }
 
 }
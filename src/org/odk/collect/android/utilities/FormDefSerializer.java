@@ -0,0 +1,329 @@
+/*
+ * Copyright (C) 2009 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.odk.collect.android.utilities;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+
+import org.javarosa.core.model.FormDef;
+import org.javarosa.core.services.locale.Localizer;
+import org.javarosa.core.util.OrderedHashtable;
+import org.javarosa.core.util.externalizable.DeserializationException;
+import org.javarosa.core.util.externalizable.ExtUtil;
+import org.odk.collect.android.application.Collect;
+import org.odk.collect.android.logic.GlobalConstants;
+import org.odk.collect.android.logic.LocaleFileSource;
+
+import android.util.Log;
+
+/**
+ * Reads and writes the binary {@link FormDef}s kept in the cache folder. Each binary starts with
+ * a header identifying the format, the build of the app that wrote it and the prototype list it
+ * was written with, followed by the payload length and checksum. Binaries that don't match the
+ * running app or fail the checksum are deleted and the form is parsed from xml again.
+ * <p>
+ * The text of multilingual forms is written to one file per language next to the binary, so a
+ * load only reads the language that is shown.
+ *
+ * @author Carl Hartung (carlhartung@gmail.com)
+ */
+public class FormDefSerializer {
+    private final static String t = "FormDefSerializer";
+
+    private final static int MAGIC = 0x4f444b46;
+    private final static int FORMAT_VERSION = 2;
+
+    // magic, format, app version, prototypes, payload length, payload crc
+    private final static int HEADER_SIZE = 4 + 4 + 4 + 4 + 4 + 8;
+
+    private final static int PROTOTYPE_HASH = hashPrototypes();
+
+
+    /**
+     * @param hash md5 hash of the form file
+     * @return where the binary for the form is kept
+     */
+    public static File getFormDefFile(String hash) {
+        return new File(GlobalConstants.CACHE_PATH + hash + ".formdef");
+    }
+
+
+    /**
+     * @param formBin binary of the form
+     * @param index position of the language in the form's list of languages
+     * @return where the text of that language is kept
+     */
+    private static File getLocaleFile(File formBin, int index) {
+        String name = formBin.getName();
+        return new File(formBin.getParentFile(), name.substring(0, name.lastIndexOf('.')) + "."
+                + index + ".locale");
+    }
+
+
+    /**
+     * Read a binary written by {@link #write(FormDef, File)}. The payload is streamed into the
+     * FormDef and checksummed on the way, so the checksum is only known once the FormDef is read.
+     *
+     * @param file binary to read
+     * @return {@link FormDef} object, or null if the binary is missing, stale or corrupt
+     */
+    public static FormDef read(File file) {
+        if (!file.exists()) {
+            return null;
+        }
+        if (file.length() < HEADER_SIZE) {
+            discard(file, "truncated");
+            return null;
+        }
+
+        String problem = "unreadable";
+        InputStream is = null;
+        try {
+            is = new BufferedInputStream(new FileInputStream(file), 16 * 1024);
+            DataInputStream dis = new DataInputStream(is);
+            problem = checkHeader(dis);
+            if (problem == null) {
+                int length = dis.readInt();
+                long crc = dis.readLong();
+                if (length != file.length() - HEADER_SIZE) {
+                    problem = "truncated";
+                } else {
+                    // prototypes are registered at startup
+                    Collect.getInstance().waitForBootstrap();
+                    CheckedInputStream cis = new CheckedInputStream(is, new CRC32());
+                    FormDef fd = new FormDef();
+                    fd.readExternal(new DataInputStream(cis), ExtUtil.defaultPrototypes());
+
+                    // anything the FormDef didn't read still counts towards the checksum
+                    byte[] rest = new byte[256];
+                    while (cis.read(rest) != -1) {
+                        // skip
+                    }
+                    if (cis.getChecksum().getValue() == crc) {
+                        return fd;
+                    }
+                    problem = "bad checksum";
+                }
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        } catch (DeserializationException e) {
+            e.printStackTrace();
+        } catch (RuntimeException e) {
+            // a corrupt payload is read before its checksum is known
+            e.printStackTrace();
+        } finally {
+            if (is != null) {
+                try {
+                    is.close();
+                } catch (IOException e) {
+                    Log.e(t, "Cannot close " + file.getAbsolutePath());
+                }
+            }
+        }
+        discard(file, problem);
+        return null;
+    }
+
+
+    /**
+     * Check the header of a binary without reading the payload.
+     *
+     * @return true if the binary was written by this build of the app
+     */
+    public static boolean isCurrent(File file) {
+        if (!file.exists()) {
+            return false;
+        }
+        DataInputStream dis = null;
+        try {
+            dis = new DataInputStream(new FileInputStream(file));
+            return checkHeader(dis) == null;
+        } catch (IOException e) {
+            return false;
+        } finally {
+            if (dis != null) {
+                try {
+                    dis.close();
+                } catch (IOException e) {
+                    Log.e(t, "Cannot close " + file.getAbsolutePath());
+                }
+            }
+        }
+    }
+
+
+    /**
+     * Write the FormDef to a hidden temporary file, sync it and rename it into place, so readers
+     * never see a partial binary. An existing binary from this build is left alone.
+     *
+     * @return true if a current binary exists afterwards
+     */
+    public static boolean write(FormDef fd, File file) {
+        if (isCurrent(file)) {
+            return true;
+        }
+        File folder = file.getParentFile();
+        if (!FileUtils.createFolder(folder.getAbsolutePath())) {
+            return false;
+        }
+
+        if (!splitLocales(fd, file)) {
+            return false;
+        }
+
+        File tmp = null;
+        try {
+            tmp = File.createTempFile("." + file.getName(), ".tmp", folder);
+
+            // the payload is streamed out with a blank length and checksum, which are filled in
+            // once it's written
+            CheckedOutputStream cos =
+                    new CheckedOutputStream(new BufferedOutputStream(new FileOutputStream(tmp),
+                            16 * 1024), new CRC32());
+            int length;
+            try {
+                DataOutputStream dos = new DataOutputStream(cos);
+                dos.writeInt(MAGIC);
+                dos.writeInt(FORMAT_VERSION);
+                dos.writeInt(Collect.getInstance().getVersionCode());
+                dos.writeInt(PROTOTYPE_HASH);
+                dos.writeInt(0);
+                dos.writeLong(0);
+                cos.getChecksum().reset();
+                fd.writeExternal(dos);
+                dos.flush();
+                length = dos.size() - HEADER_SIZE;
+            } finally {
+                cos.close();
+            }
+
+            RandomAccessFile raf = new RandomAccessFile(tmp, "rw");
+            try {
+                raf.seek(HEADER_SIZE - 4 - 8);
+                raf.writeInt(length);
+                raf.writeLong(cos.getChecksum().getValue());
+                raf.getFD().sync();
+            } finally {
+                raf.close();
+            }
+
+            if (tmp.renameTo(file)) {
+                return true;
+            }
+            Log.e(t, "Failed to rename " + tmp.getAbsolutePath());
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+
+        if (tmp != null) {
+            tmp.delete();
+        }
+        return isCurrent(file);
+    }
+
+
+    /**
+     * Move the text of each language of a multilingual form into its own file, and point the
+     * form's localizer at those files. Each file holds all of its language's text, even text it
+     * shares with the default language: the localizer builds a fresh copy of the default
+     * language's whole table for every text it falls back on, which would make switching
+     * languages read and copy the default file once per text.
+     *
+     * @return false if a text file couldn't be written, in which case the form is unchanged
+     */
+    private static boolean splitLocales(FormDef fd, File formBin) {
+        Localizer l = fd.getLocalizer();
+        if (l == null || l.getAvailableLocales().length < 2) {
+            return true;
+        }
+
+        String[] locales = l.getAvailableLocales();
+        String defaultLocale = l.getDefaultLocale();
+
+        Localizer split = new Localizer(l.getFallbackLocale(), l.getFallbackForm());
+        for (int i = 0; i < locales.length; i++) {
+            OrderedHashtable text = l.getLocaleData(locales[i]);
+            File localeFile = getLocaleFile(formBin, i);
+            if (!LocaleFileSource.write(localeFile, text)) {
+                return false;
+            }
+            split.addAvailableLocale(locales[i]);
+            split.registerLocaleResource(locales[i], new LocaleFileSource(localeFile.getName()));
+        }
+
+        if (defaultLocale != null) {
+            split.setDefaultLocale(defaultLocale);
+        }
+        if (l.getLocale() != null) {
+            split.setLocale(l.getLocale());
+        }
+        fd.setLocalizer(split);
+        return true;
+    }
+
+
+    /**
+     * @return null if the header matches this build, otherwise why it doesn't
+     */
+    private static String checkHeader(DataInputStream dis) throws IOException {
+        if (dis.readInt() != MAGIC) {
+            return "not a formdef";
+        }
+        if (dis.readInt() != FORMAT_VERSION) {
+            return "old format";
+        }
+        // javarosa ships inside the app, so a new build may serialize differently
+        if (dis.readInt() != Collect.getInstance().getVersionCode()) {
+            return "written by another version";
+        }
+        if (dis.readInt() != PROTOTYPE_HASH) {
+            return "prototype list changed";
+        }
+        return null;
+    }
+
+
+    private static void discard(File file, String reason) {
+        Log.i(t, "Discarding " + file.getName() + ": " + reason);
+        if (!file.delete()) {
+            Log.e(t, "Failed to delete " + file.getAbsolutePath());
+        }
+    }
+
+
+    private static int hashPrototypes() {
+        CRC32 crc = new CRC32();
+        for (String name : GlobalConstants.SERIALIABLE_CLASSES) {
+            crc.update(name.getBytes());
+            crc.update('\n');
+        }
+        return (int) crc.getValue();
+    }
+
+}
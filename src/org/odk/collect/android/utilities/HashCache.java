@@ -0,0 +1,280 @@
+/*
+ * Copyright (C) 2009 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.odk.collect.android.utilities;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+import org.odk.collect.android.logic.GlobalConstants;
+
+import android.util.Log;
+
+/**
+ * Remembers the md5 hash of files keyed by absolute path, length and last modified time, so
+ * unchanged files are only read once. Entries are appended to a hidden file in the cache folder
+ * and survive restarts.
+ *
+ * @author Carl Hartung (carlhartung@gmail.com)
+ */
+public class HashCache {
+    private final static String t = "HashCache";
+
+    private final static String MEMO_PATH = GlobalConstants.CACHE_PATH + ".hashes";
+    private final static String MEMO_TMP_PATH = MEMO_PATH + ".tmp";
+
+    private final static int MAGIC = 0x4f444b48;
+    private final static int VERSION = 1;
+
+    /**
+     * Files modified this recently are hashed but not remembered. The sd card only keeps
+     * modification times to the nearest two seconds, so a file rewritten within that window could
+     * otherwise keep a stale hash.
+     */
+    private final static long RACY_WINDOW = 3000;
+
+    private static HashMap<String, Entry> sEntries;
+    private static DataOutputStream sJournal;
+    private static int sRecords;
+
+    private static class Entry {
+        long length;
+        long modified;
+        String hash;
+
+
+        Entry(long length, long modified, String hash) {
+            this.length = length;
+            this.modified = modified;
+            this.hash = hash;
+        }
+    }
+
+
+    /**
+     * Returns the md5 hash of the file, reading the file only if its path, length or modified
+     * time has changed since it was last hashed.
+     *
+     * @param file file to hash
+     * @return hex encoded md5 hash or null if the file can't be read
+     */
+    public static String getMd5Hash(File file) {
+        String path = file.getAbsolutePath();
+        long length = file.length();
+        long modified = file.lastModified();
+
+        synchronized (HashCache.class) {
+            load();
+            Entry e = sEntries.get(path);
+            if (e != null && e.length == length && e.modified == modified) {
+                return e.hash;
+            }
+        }
+
+        // hash outside the lock so other threads can keep hitting the memo
+        DigestResult result = FileUtils.getDigest(file, FileUtils.MD5);
+        if (result == null) {
+            return null;
+        }
+
+        if (modified != 0 && System.currentTimeMillis() - modified > RACY_WINDOW
+                && result.getSize() == length) {
+            put(path, new Entry(length, modified, result.getHash()));
+        }
+        return result.getHash();
+    }
+
+
+    private static synchronized void put(String path, Entry e) {
+        load();
+        sEntries.put(path, e);
+        if (openJournal()) {
+            try {
+                writeEntry(sJournal, path, e);
+                sJournal.flush();
+                sRecords++;
+            } catch (IOException ex) {
+                Log.e(t, "Cannot append to " + MEMO_PATH);
+                closeJournal();
+            }
+        }
+    }
+
+
+    /**
+     * Read the memo from disk the first time it is needed. Later records for a path override
+     * earlier ones, and a truncated tail is ignored.
+     */
+    private static void load() {
+        if (sEntries != null) {
+            return;
+        }
+        sEntries = new HashMap<String, Entry>();
+        sRecords = 0;
+
+        File memo = new File(MEMO_PATH);
+        if (!memo.exists()) {
+            return;
+        }
+
+        // a record cut short by a crash has to be dropped before anything is appended
+        boolean truncated = false;
+        DataInputStream dis = null;
+        try {
+            dis = new DataInputStream(new BufferedInputStream(new FileInputStream(memo)));
+            if (dis.readInt() != MAGIC || dis.readInt() != VERSION) {
+                Log.i(t, "Discarding hash memo with unknown format");
+                dis.close();
+                dis = null;
+                memo.delete();
+                return;
+            }
+            while (true) {
+                String path = dis.readUTF();
+                truncated = true;
+                long length = dis.readLong();
+                long modified = dis.readLong();
+                String hash = dis.readUTF();
+                sEntries.put(path, new Entry(length, modified, hash));
+                sRecords++;
+                truncated = false;
+            }
+        } catch (EOFException e) {
+            // end of memo
+        } catch (IOException e) {
+            Log.e(t, "Error reading " + MEMO_PATH);
+            truncated = true;
+        } finally {
+            if (dis != null) {
+                try {
+                    dis.close();
+                } catch (IOException e) {
+                    Log.e(t, "Cannot close " + MEMO_PATH);
+                }
+            }
+        }
+
+        // superseded records and deleted files build up over time
+        if (truncated || sRecords > 2 * sEntries.size() + 64) {
+            compact();
+        }
+    }
+
+
+    /**
+     * Rewrite the memo with one record per existing file.
+     */
+    private static void compact() {
+        Iterator<Map.Entry<String, Entry>> it = sEntries.entrySet().iterator();
+        while (it.hasNext()) {
+            if (!new File(it.next().getKey()).exists()) {
+                it.remove();
+            }
+        }
+
+        if (!FileUtils.createFolder(GlobalConstants.CACHE_PATH)) {
+            return;
+        }
+        File tmp = new File(MEMO_TMP_PATH);
+        DataOutputStream dos = null;
+        try {
+            dos = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+            dos.writeInt(MAGIC);
+            dos.writeInt(VERSION);
+            for (Map.Entry<String, Entry> e : sEntries.entrySet()) {
+                writeEntry(dos, e.getKey(), e.getValue());
+            }
+            dos.close();
+            dos = null;
+            if (!tmp.renameTo(new File(MEMO_PATH))) {
+                Log.e(t, "Failed to rename " + MEMO_TMP_PATH);
+                return;
+            }
+            sRecords = sEntries.size();
+        } catch (IOException e) {
+            Log.e(t, "Error compacting " + MEMO_PATH);
+        } finally {
+            if (dos != null) {
+                try {
+                    dos.close();
+                } catch (IOException e) {
+                    Log.e(t, "Cannot close " + MEMO_TMP_PATH);
+                }
+            }
+        }
+    }
+
+
+    private static boolean openJournal() {
+        if (sJournal != null) {
+            return true;
+        }
+        if (!FileUtils.createFolder(GlobalConstants.CACHE_PATH)) {
+            return false;
+        }
+        try {
+            File memo = new File(MEMO_PATH);
+            boolean exists = memo.exists();
+            sJournal =
+                    new DataOutputStream(new BufferedOutputStream(new FileOutputStream(memo,
+                            exists)));
+            if (!exists) {
+                sJournal.writeInt(MAGIC);
+                sJournal.writeInt(VERSION);
+            }
+            return true;
+        } catch (FileNotFoundException e) {
+            Log.e(t, "Cannot open " + MEMO_PATH);
+        } catch (IOException e) {
+            Log.e(t, "Cannot write header to " + MEMO_PATH);
+            closeJournal();
+        }
+        return false;
+    }
+
+
+    private static void closeJournal() {
+        if (sJournal != null) {
+            try {
+                sJournal.close();
+            } catch (IOException e) {
+                Log.e(t, "Cannot close " + MEMO_PATH);
+            }
+            sJournal = null;
+        }
+    }
+
+
+    private static void writeEntry(DataOutputStream dos, String path, Entry e)
+            throws IOException {
+        dos.writeUTF(path);
+        dos.writeLong(e.length);
+        dos.writeLong(e.modified);
+        dos.writeUTF(e.hash);
+    }
+
+}
@@ -0,0 +1,653 @@
+/*
+ * Copyright (C) 2009 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.odk.collect.android.utilities;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.util.zip.CRC32;
+
+import org.javarosa.core.model.FormIndex;
+import org.javarosa.core.model.data.IAnswerData;
+import org.javarosa.core.model.instance.TreeReference;
+import org.javarosa.core.util.externalizable.DeserializationException;
+import org.javarosa.core.util.externalizable.ExtUtil;
+import org.javarosa.core.util.externalizable.ExtWrapNullable;
+import org.javarosa.core.util.externalizable.ExtWrapTagged;
+import org.javarosa.core.util.externalizable.PrototypeFactory;
+import org.javarosa.form.api.FormEntryController;
+
+import android.util.Log;
+
+/**
+ * Append only log of the changes made to a saved instance since its xml was written, kept as a
+ * hidden file next to the xml. Each answer, new repeat and deleted repeat is appended as it
+ * happens, so a crash loses at most the answer on screen. The journal records the hash of the
+ * xml it applies to and is replayed on top of that xml when the instance is opened. Every save
+ * the user asks for writes the xml, which clears the journal.
+ * <p>
+ * A journal is only removed once the xml it applies to has been replaced. One written for
+ * another version of the form is kept and the instance fails to load, rather than losing
+ * changes.
+ * <p>
+ * Instances that have never been saved have no xml to apply a journal to, so nothing is
+ * journaled until the first save. An autosave writes the xml from a copy of the instance while
+ * editing goes on, and then {@link #rebase rebases} the journal onto it.
+ *
+ * @author Carl Hartung (carlhartung@gmail.com)
+ */
+public class InstanceJournal {
+    private final static String t = "InstanceJournal";
+
+    private final static int MAGIC = 0x4f444b4a;
+    // 1 also recorded the app version. records only hold indexes and values, so it was dropped
+    private final static int FORMAT_VERSION = 2;
+
+    // the journal was written on top of xml that has since been replaced
+    private final static String STALE = "instance xml changed";
+
+    private final static byte ANSWER = 1;
+    private final static byte NEW_REPEAT = 2;
+    private final static byte DELETE_REPEAT = 3;
+
+    private final File mInstanceXml;
+    private final File mJournal;
+    private final String mFormHash;
+
+    // hash of the xml the journal applies to, from whoever last read or wrote the xml
+    private String mInstanceHash;
+
+    private FileOutputStream mStream;
+    private boolean mFailed;
+
+    // a change couldn't be journaled since the last mark
+    private boolean mDropped;
+
+    // times the journal was cleared or failed, so a rebase can tell it started on an old journal
+    private int mClears;
+
+
+    /**
+     * @param instanceXml xml of the instance being edited
+     * @param formHash md5 hash of the form file
+     * @param instanceHash md5 hash of the xml, or null if it hasn't been written yet
+     */
+    public InstanceJournal(File instanceXml, String formHash, String instanceHash) {
+        mInstanceXml = instanceXml;
+        mJournal = getJournalFile(instanceXml);
+        mFormHash = formHash;
+        mInstanceHash = instanceHash;
+    }
+
+
+    /**
+     * @param instanceXml saved instance xml
+     * @return hidden journal file in the same folder
+     */
+    public static File getJournalFile(File instanceXml) {
+        return new File(instanceXml.getParentFile(), "." + instanceXml.getName() + ".journal");
+    }
+
+
+    /**
+     * Record an answer that was just committed to the form.
+     */
+    public synchronized void answer(FormIndex index, IAnswerData value) {
+        append(ANSWER, index, value);
+    }
+
+
+    /**
+     * Record a repeat that was just added at the index.
+     */
+    public synchronized void newRepeat(FormIndex index) {
+        append(NEW_REPEAT, index, null);
+    }
+
+
+    /**
+     * Record a repeat that is about to be deleted at the index.
+     */
+    public synchronized void deleteRepeat(FormIndex index) {
+        append(DELETE_REPEAT, index, null);
+    }
+
+
+    /**
+     * Force appended changes to the sd card. Appends are already handed to the os as they are
+     * made, which covers the app being killed; this covers the device losing power.
+     *
+     * @return false if the journal can't be relied on
+     */
+    public synchronized boolean sync() {
+        if (mStream == null) {
+            return !mFailed;
+        }
+        try {
+            mStream.getFD().sync();
+            return true;
+        } catch (IOException e) {
+            Log.e(t, "Cannot sync " + mJournal.getAbsolutePath());
+            fail();
+            return false;
+        }
+    }
+
+
+    /**
+     * Drop the journal once its changes are in the xml. The next change starts a new journal on
+     * top of the new xml.
+     *
+     * @param instanceHash md5 hash of the xml just written, or null if the xml is going away
+     */
+    public synchronized void clear(String instanceHash) {
+        mClears++;
+        close();
+        mFailed = false;
+        mDropped = false;
+        mInstanceHash = instanceHash;
+        delete(mInstanceXml);
+    }
+
+
+    /**
+     * Mark the end of the changes made so far. Call when copying the instance to write it, and
+     * pass the mark to {@link #rebase} once the copy is written.
+     *
+     * @return position of the mark, or -1 if nothing is being journaled
+     */
+    public synchronized long mark() {
+        mDropped = false;
+        if (!open()) {
+            return -1;
+        }
+        return mJournal.length();
+    }
+
+
+    /**
+     * Start the journal again on top of xml that was just written from a copy taken at the mark,
+     * keeping only the changes made since the copy. Nothing is journaled while the instance has
+     * no xml, so if changes were made before the xml first appeared the journal stops until the
+     * next full save.
+     * <p>
+     * Called off the main thread while changes keep being journaled on it, so the changes are
+     * copied and synced without holding the journal. Only the few appended meanwhile are copied
+     * while holding it, before the new journal is renamed into place and appended to from then
+     * on.
+     *
+     * @param mark from {@link #mark} when the copy was taken
+     * @param instanceHash md5 hash of the xml written from the copy
+     */
+    public void rebase(long mark, String instanceHash) {
+        long copied;
+        int clears;
+        synchronized (this) {
+            if (mark < 0) {
+                if (mDropped) {
+                    fail();
+                } else if (mStream == null) {
+                    // nothing was journaled, so the xml written is the one to journal on top of
+                    mInstanceHash = instanceHash;
+                }
+                return;
+            }
+            if (mFailed) {
+                return;
+            }
+            copied = mJournal.length();
+            clears = mClears;
+        }
+
+        File tmp = null;
+        FileOutputStream fos = null;
+        try {
+            if (mark > copied) {
+                throw new IOException("Mark past the end");
+            }
+            tmp = File.createTempFile(mJournal.getName(), ".tmp", mJournal.getParentFile());
+            fos = new FileOutputStream(tmp);
+            fos.write(getHeader(instanceHash));
+            copy(mark, copied, fos);
+            fos.getFD().sync();
+
+            synchronized (this) {
+                if (clears != mClears) {
+                    // cleared or failed meanwhile, so there is nothing left to rebase
+                    fos.close();
+                    tmp.delete();
+                    return;
+                }
+                // appended during the copy, and no more synced than any other append
+                copy(copied, mJournal.length(), fos);
+                if (tmp.renameTo(mJournal)) {
+                    mInstanceHash = instanceHash;
+                    if (mStream == null) {
+                        fos.close();
+                    } else {
+                        close();
+                        mStream = fos;
+                    }
+                    return;
+                }
+                Log.e(t, "Failed to rename " + tmp.getAbsolutePath());
+            }
+        } catch (IOException e) {
+            Log.e(t, "Cannot rebase " + mJournal.getAbsolutePath() + ": " + e.getMessage());
+        }
+
+        if (fos != null) {
+            try {
+                fos.close();
+            } catch (IOException e) {
+                Log.e(t, "Cannot close " + tmp.getAbsolutePath());
+            }
+        }
+        if (tmp != null) {
+            tmp.delete();
+        }
+        synchronized (this) {
+            if (clears == mClears) {
+                fail();
+            }
+        }
+    }
+
+
+    /**
+     * Copy part of the journal to the end of a stream.
+     */
+    private void copy(long start, long end, OutputStream out) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(mJournal, "r");
+        try {
+            raf.seek(start);
+            byte[] buffer = new byte[8192];
+            long left = end - start;
+            while (left > 0) {
+                int read = raf.read(buffer, 0, (int) Math.min(buffer.length, left));
+                if (read < 0) {
+                    throw new EOFException("Journal cut short");
+                }
+                out.write(buffer, 0, read);
+                left -= read;
+            }
+        } finally {
+            raf.close();
+        }
+    }
+
+
+    public synchronized void close() {
+        if (mStream != null) {
+            try {
+                mStream.close();
+            } catch (IOException e) {
+                Log.e(t, "Cannot close " + mJournal.getAbsolutePath());
+            }
+            mStream = null;
+        }
+    }
+
+
+    /**
+     * Remove the journal of an instance, if it has one.
+     */
+    public static void delete(File instanceXml) {
+        File journal = getJournalFile(instanceXml);
+        if (journal.exists() && !journal.delete()) {
+            Log.e(t, "Failed to delete " + journal.getAbsolutePath());
+        }
+    }
+
+
+    private void append(byte type, FormIndex index, IAnswerData value) {
+        if (!open()) {
+            mDropped = true;
+            return;
+        }
+        try {
+            ByteArrayOutputStream record = new ByteArrayOutputStream(64);
+            DataOutputStream ros = new DataOutputStream(record);
+            ros.writeByte(type);
+            ros.writeLong(System.currentTimeMillis());
+            writeIndex(ros, index);
+            if (type == ANSWER) {
+                ExtUtil.write(ros, new ExtWrapNullable(value == null ? null : new ExtWrapTagged(
+                        value)));
+            }
+            ros.flush();
+            byte[] bytes = record.toByteArray();
+            CRC32 crc = new CRC32();
+            crc.update(bytes);
+
+            // one write per record, so a crash leaves at most one partial record at the end
+            ByteArrayOutputStream framed = new ByteArrayOutputStream(bytes.length + 8);
+            DataOutputStream fos = new DataOutputStream(framed);
+            fos.writeInt(bytes.length);
+            fos.write(bytes);
+            fos.writeInt((int) crc.getValue());
+            fos.flush();
+            mStream.write(framed.toByteArray());
+        } catch (IOException e) {
+            Log.e(t, "Cannot append to " + mJournal.getAbsolutePath());
+            fail();
+        }
+    }
+
+
+    /**
+     * Open the journal for appending, starting a new one if there is none for the current xml.
+     * Called as changes are made on the main thread, so the xml is only hashed here if no one who
+     * read or wrote it passed its hash on.
+     *
+     * @return false if changes can't be journaled
+     */
+    private boolean open() {
+        if (mStream != null) {
+            return true;
+        }
+        if (mFailed || mFormHash == null || !mInstanceXml.exists()) {
+            return false;
+        }
+
+        if (mInstanceHash == null) {
+            mInstanceHash = FileUtils.getMd5Hash(mInstanceXml);
+        }
+        String instanceHash = mInstanceHash;
+        if (instanceHash == null) {
+            return false;
+        }
+
+        try {
+            // replay has already dropped journals that don't match the xml
+            String problem = STALE;
+            if (mJournal.exists()) {
+                problem = checkHeader(mJournal, mFormHash, instanceHash);
+            }
+            if (problem != null && !STALE.equals(problem)) {
+                // changes for another version of the form, which mustn't be written over
+                Log.e(t, "Not journaling over " + mJournal.getAbsolutePath() + ": " + problem);
+                mFailed = true;
+                return false;
+            }
+            boolean exists = problem == null;
+            mStream = new FileOutputStream(mJournal, exists);
+            if (!exists) {
+                mStream.write(getHeader(instanceHash));
+            }
+            return true;
+        } catch (IOException e) {
+            Log.e(t, "Cannot open " + mJournal.getAbsolutePath());
+            fail();
+            return false;
+        }
+    }
+
+
+    private byte[] getHeader(String instanceHash) throws IOException {
+        ByteArrayOutputStream header = new ByteArrayOutputStream(128);
+        DataOutputStream hos = new DataOutputStream(header);
+        hos.writeInt(MAGIC);
+        hos.writeInt(FORMAT_VERSION);
+        hos.writeUTF(mFormHash);
+        hos.writeUTF(instanceHash);
+        hos.flush();
+        return header.toByteArray();
+    }
+
+
+    /**
+     * Stop journaling. The journal no longer holds every change, so it is removed and the next
+     * save writes the xml.
+     */
+    private void fail() {
+        mClears++;
+        close();
+        mFailed = true;
+        delete(mInstanceXml);
+    }
+
+
+    /**
+     * @return null if the header matches, otherwise why it doesn't
+     */
+    private static String checkHeader(File journal, String formHash, String instanceHash) {
+        DataInputStream dis = null;
+        try {
+            dis = new DataInputStream(new BufferedInputStream(new FileInputStream(journal), 512));
+            return readHeader(dis, formHash, instanceHash);
+        } catch (IOException e) {
+            // cut short before any change was written
+            return STALE;
+        } finally {
+            if (dis != null) {
+                try {
+                    dis.close();
+                } catch (IOException e) {
+                    Log.e(t, "Cannot close " + journal.getAbsolutePath());
+                }
+            }
+        }
+    }
+
+
+    /**
+     * @return null if the header matches, otherwise why it doesn't
+     */
+    private static String readHeader(DataInputStream dis, String formHash, String instanceHash)
+            throws IOException {
+        if (dis.readInt() != MAGIC) {
+            return "not a journal";
+        }
+        int format = dis.readInt();
+        if (format == 1) {
+            dis.readInt();
+        } else if (format != FORMAT_VERSION) {
+            return "unknown format " + format;
+        }
+        if (!dis.readUTF().equals(formHash)) {
+            return "form changed";
+        }
+        if (!dis.readUTF().equals(instanceHash)) {
+            return STALE;
+        }
+        return null;
+    }
+
+
+    /**
+     * Apply the journal of a saved instance to the form the instance was just loaded into. A
+     * journal written on top of xml that has since been replaced is removed. A journal that can't
+     * be applied to this form is left alone, so its changes aren't lost. A partial record left by
+     * a crash ends the replay and is cut off, so later appends follow the last good record.
+     *
+     * @param instanceXml saved instance xml the form was loaded from
+     * @param formHash md5 hash of the form file
+     * @param instanceHash md5 hash of the xml
+     * @param fec controller of the loaded form
+     * @return number of changes applied, or -1 if the journal can't be applied to the form
+     */
+    public static int replay(File instanceXml, String formHash, String instanceHash,
+            FormEntryController fec) {
+        File journal = getJournalFile(instanceXml);
+        if (!journal.exists()) {
+            return 0;
+        }
+        byte[] bytes = FileUtils.getFileAsBytes(journal);
+        if (bytes == null) {
+            return 0;
+        }
+
+        ByteArrayInputStream bis = new ByteArrayInputStream(bytes);
+        DataInputStream dis = new DataInputStream(bis);
+        String problem;
+        try {
+            problem = readHeader(dis, formHash, instanceHash);
+        } catch (IOException e) {
+            // a crash while the header was written, before any change was
+            problem = STALE;
+        }
+        if (STALE.equals(problem)) {
+            Log.i(t, "Discarding journal for " + instanceXml.getName() + ": " + problem);
+            delete(instanceXml);
+            return 0;
+        } else if (problem != null) {
+            Log.e(t, "Cannot apply journal for " + instanceXml.getName() + ": " + problem);
+            return -1;
+        }
+
+        int applied = 0;
+        int good = bytes.length - bis.available();
+        long first = 0;
+        long last = 0;
+        try {
+            PrototypeFactory pf = ExtUtil.defaultPrototypes();
+            while (bis.available() > 0) {
+                int length = dis.readInt();
+                if (length < 0 || length > bis.available() - 4) {
+                    throw new EOFException("Partial record");
+                }
+                int offset = bytes.length - bis.available();
+                dis.skipBytes(length);
+                CRC32 crc = new CRC32();
+                crc.update(bytes, offset, length);
+                if (dis.readInt() != (int) crc.getValue()) {
+                    throw new IOException("Bad checksum");
+                }
+
+                long time = apply(new DataInputStream(new ByteArrayInputStream(bytes, offset,
+                        length)), fec, pf);
+                if (first == 0) {
+                    first = time;
+                }
+                last = time;
+                applied++;
+                good = bytes.length - bis.available();
+            }
+        } catch (IOException e) {
+            Log.e(t, "Journal for " + instanceXml.getName() + " ends early: " + e.getMessage());
+        } catch (DeserializationException e) {
+            Log.e(t, "Cannot read journal for " + instanceXml.getName() + ": " + e.getMessage());
+        } catch (RuntimeException e) {
+            Log.e(t, "Cannot apply journal for " + instanceXml.getName() + ": " + e.getMessage());
+        }
+
+        if (good < bytes.length) {
+            truncate(journal, good);
+        }
+        if (applied > 0) {
+            // give replayed selections their choices
+            fec.getModel().getForm().attachControlsToInstanceData();
+            fec.jumpToIndex(FormIndex.createBeginningOfFormIndex());
+            Log.i(t, "Replayed " + applied + " changes to " + instanceXml.getName() + " made "
+                    + "between " + first + " and " + last);
+        }
+        return applied;
+    }
+
+
+    private static long apply(DataInputStream dis, FormEntryController fec, PrototypeFactory pf)
+            throws IOException, DeserializationException {
+        byte type = dis.readByte();
+        long time = dis.readLong();
+        FormIndex index = readIndex(dis, pf);
+
+        // the controller only answers the question it is on
+        fec.jumpToIndex(index);
+        switch (type) {
+            case ANSWER:
+                IAnswerData value =
+                        (IAnswerData) ExtUtil.read(dis, new ExtWrapNullable(new ExtWrapTagged()),
+                                pf);
+                fec.saveAnswer(index, value);
+                break;
+            case NEW_REPEAT:
+                fec.newRepeat(index);
+                break;
+            case DELETE_REPEAT:
+                fec.deleteRepeat(index);
+                break;
+            default:
+                throw new DeserializationException("Unknown journal record " + type);
+        }
+        return time;
+    }
+
+
+    private static void truncate(File journal, int length) {
+        RandomAccessFile raf = null;
+        try {
+            raf = new RandomAccessFile(journal, "rw");
+            raf.setLength(length);
+        } catch (IOException e) {
+            Log.e(t, "Cannot truncate " + journal.getAbsolutePath());
+        } finally {
+            if (raf != null) {
+                try {
+                    raf.close();
+                } catch (IOException e) {
+                    Log.e(t, "Cannot close " + journal.getAbsolutePath());
+                }
+            }
+        }
+    }
+
+
+    /**
+     * Write each level of the index, outermost first.
+     */
+    private static void writeIndex(DataOutputStream dos, FormIndex index) throws IOException {
+        dos.writeInt(index.getDepth());
+        for (FormIndex level = index; level != null; level = level.getNextLevel()) {
+            dos.writeInt(level.getLocalIndex());
+            dos.writeInt(level.getInstanceIndex());
+            ExtUtil.write(dos, new ExtWrapNullable(level.getLocalReference()));
+        }
+    }
+
+
+    private static FormIndex readIndex(DataInputStream dis, PrototypeFactory pf)
+            throws IOException, DeserializationException {
+        int depth = dis.readInt();
+        int[] localIndexes = new int[depth];
+        int[] instanceIndexes = new int[depth];
+        TreeReference[] refs = new TreeReference[depth];
+        for (int i = 0; i < depth; i++) {
+            localIndexes[i] = dis.readInt();
+            instanceIndexes[i] = dis.readInt();
+            refs[i] =
+                    (TreeReference) ExtUtil.read(dis, new ExtWrapNullable(TreeReference.class), pf);
+        }
+
+        // rebuild from the innermost level out
+        FormIndex index = null;
+        for (int i = depth - 1; i >= 0; i--) {
+            index = new FormIndex(index, localIndexes[i], instanceIndexes[i], refs[i]);
+        }
+        return index;
+    }
+
+}
@@ -0,0 +1,286 @@
+/*
+ * Copyright (C) 2009 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.odk.collect.android.utilities;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.zip.CRC32;
+
+import org.javarosa.core.model.FormDef;
+import org.javarosa.core.model.data.IAnswerData;
+import org.javarosa.core.model.instance.FormInstance;
+import org.javarosa.core.model.instance.TreeElement;
+import org.javarosa.core.model.instance.TreeReference;
+import org.javarosa.core.util.externalizable.DeserializationException;
+import org.javarosa.core.util.externalizable.ExtUtil;
+import org.javarosa.core.util.externalizable.ExtWrapNullable;
+import org.javarosa.core.util.externalizable.ExtWrapTagged;
+import org.javarosa.core.util.externalizable.PrototypeFactory;
+import org.odk.collect.android.application.Collect;
+import org.odk.collect.android.logic.InstanceImporter;
+
+import android.util.Log;
+
+/**
+ * Compact binary copy of a saved instance, kept as a hidden file next to the instance xml. It
+ * holds the same nodes as the xml, with answers in their serialized javarosa form, so restoring
+ * skips xml parsing and answer parsing. The snapshot records the hash of the form and of the xml
+ * it was written with, and is only used while both still match. The xml remains the copy that
+ * gets uploaded.
+ *
+ * @author Carl Hartung (carlhartung@gmail.com)
+ */
+public class InstanceSnapshot {
+    private final static String t = "InstanceSnapshot";
+
+    private final static int MAGIC = 0x4f444b53;
+    private final static int FORMAT_VERSION = 1;
+
+
+    /**
+     * @param instanceXml saved instance xml
+     * @return hidden snapshot file in the same folder
+     */
+    public static File getSnapshotFile(File instanceXml) {
+        return new File(instanceXml.getParentFile(), "." + instanceXml.getName() + ".snapshot");
+    }
+
+
+    /**
+     * Write a snapshot of the instance. Failures are logged and leave no snapshot behind, since
+     * the xml can always be read instead.
+     *
+     * @param instance instance that was just saved
+     * @param instanceXml xml the instance was just saved to
+     * @param formHash md5 hash of the form file
+     * @param instanceHash md5 hash of the instance xml
+     */
+    public static void write(FormInstance instance, File instanceXml, String formHash,
+            String instanceHash) {
+        File snapshot = getSnapshotFile(instanceXml);
+        File tmp = null;
+        try {
+            ByteArrayOutputStream payload = new ByteArrayOutputStream(16 * 1024);
+            DataOutputStream pos = new DataOutputStream(payload);
+            writeNode(pos, instance.getRoot());
+            pos.flush();
+            byte[] bytes = payload.toByteArray();
+            CRC32 crc = new CRC32();
+            crc.update(bytes);
+
+            tmp = File.createTempFile(snapshot.getName(), ".tmp", snapshot.getParentFile());
+            FileOutputStream fos = new FileOutputStream(tmp);
+            try {
+                DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(fos));
+                dos.writeInt(MAGIC);
+                dos.writeInt(FORMAT_VERSION);
+                dos.writeInt(Collect.getInstance().getVersionCode());
+                dos.writeUTF(formHash);
+                dos.writeUTF(instanceHash);
+                dos.writeInt(bytes.length);
+                dos.writeLong(crc.getValue());
+                dos.write(bytes);
+                dos.flush();
+                fos.getFD().sync();
+            } finally {
+                fos.close();
+            }
+
+            if (tmp.renameTo(snapshot)) {
+                return;
+            }
+            Log.e(t, "Failed to rename " + tmp.getAbsolutePath());
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+
+        if (tmp != null) {
+            tmp.delete();
+        }
+        delete(instanceXml);
+    }
+
+
+    /**
+     * Fill the form's blank instance from the snapshot of a saved instance.
+     *
+     * @param instanceXml saved instance xml
+     * @param formHash md5 hash of the form file the instance is being loaded into
+     * @param fd initialized form whose instance is still blank
+     * @return false if there is no usable snapshot and the xml has to be read instead, in which
+     *         case the form's instance is left blank
+     */
+    public static boolean read(File instanceXml, String formHash, FormDef fd) {
+        File snapshot = getSnapshotFile(instanceXml);
+        if (!snapshot.exists()) {
+            return false;
+        }
+
+        byte[] bytes = FileUtils.getFileAsBytes(snapshot);
+        if (bytes == null) {
+            return false;
+        }
+
+        FormInstance blank = null;
+        try {
+            DataInputStream dis = new DataInputStream(new ByteArrayInputStream(bytes));
+            if (dis.readInt() != MAGIC || dis.readInt() != FORMAT_VERSION
+                    || dis.readInt() != Collect.getInstance().getVersionCode()) {
+                Log.i(t, "Ignoring snapshot from another version for " + instanceXml.getName());
+                return false;
+            }
+            if (!dis.readUTF().equals(formHash)) {
+                Log.i(t, "Form changed since " + instanceXml.getName() + " was saved");
+                return false;
+            }
+            if (!dis.readUTF().equals(FileUtils.getMd5Hash(instanceXml))) {
+                Log.i(t, "Instance xml changed since " + instanceXml.getName() + " was saved");
+                return false;
+            }
+            int length = dis.readInt();
+            long crc = dis.readLong();
+            int offset = bytes.length - dis.available();
+            if (length != bytes.length - offset) {
+                Log.e(t, "Truncated snapshot for " + instanceXml.getName());
+                return false;
+            }
+            CRC32 check = new CRC32();
+            check.update(bytes, offset, length);
+            if (check.getValue() != crc) {
+                Log.e(t, "Bad checksum in snapshot for " + instanceXml.getName());
+                return false;
+            }
+
+            // keep the blank instance in case the snapshot doesn't fit the form after all
+            blank = fd.getInstance().clone();
+            readNode(dis, fd.getInstance().getRoot(), ExtUtil.defaultPrototypes());
+
+            // give restored selections their choices back
+            fd.attachControlsToInstanceData();
+            return true;
+        } catch (IOException e) {
+            e.printStackTrace();
+        } catch (DeserializationException e) {
+            Log.e(t, "Cannot restore " + instanceXml.getName() + ": " + e.getMessage());
+        } catch (RuntimeException e) {
+            Log.e(t, "Cannot restore " + instanceXml.getName() + ": " + e.getMessage());
+        }
+
+        if (blank != null) {
+            fd.setInstance(blank);
+        }
+        return false;
+    }
+
+
+    /**
+     * Write the nodes the xml serializer would write: relevant nodes, without repeat templates.
+     */
+    private static void writeNode(DataOutputStream dos, TreeElement node) throws IOException {
+        if (node.isLeaf()) {
+            IAnswerData value = node.getValue();
+            ExtUtil.write(dos, new ExtWrapNullable(value == null ? null : new ExtWrapTagged(value)));
+            return;
+        }
+
+        for (int i = 0; i < node.getNumChildren(); i++) {
+            TreeElement child = node.getChildAt(i);
+            if (child.isRelevant() && child.getMult() != TreeReference.INDEX_TEMPLATE) {
+                dos.writeBoolean(true);
+                dos.writeUTF(child.getName());
+                writeNode(dos, child);
+            }
+        }
+        dos.writeBoolean(false);
+    }
+
+
+    /**
+     * Read nodes into the blank instance the same way {@link InstanceImporter} reads xml.
+     */
+    private static void readNode(DataInputStream dis, TreeElement node, PrototypeFactory pf)
+            throws IOException, DeserializationException {
+        if (node.isLeaf()) {
+            node.setValue((IAnswerData) ExtUtil.read(dis, new ExtWrapNullable(new ExtWrapTagged()),
+                    pf));
+            return;
+        }
+
+        // repeats are rebuilt from their templates
+        for (int i = 0; i < node.getNumChildren(); i++) {
+            TreeElement child = node.getChildAt(i);
+            if (child.repeatable && child.getMult() != TreeReference.INDEX_TEMPLATE) {
+                node.removeChildAt(i);
+                i--;
+            }
+        }
+
+        HashSet<String> seen = new HashSet<String>();
+        HashMap<String, Integer> repeatCounts = new HashMap<String, Integer>();
+
+        while (dis.readBoolean()) {
+            String name = dis.readUTF();
+            TreeElement template = node.getChild(name, TreeReference.INDEX_TEMPLATE);
+            TreeElement child = null;
+
+            if (template != null && template.repeatable) {
+                Integer count = repeatCounts.get(name);
+                int mult = count == null ? 0 : count.intValue();
+                repeatCounts.put(name, Integer.valueOf(mult + 1));
+
+                child = template.deepCopy(true);
+                child.setMult(mult);
+                node.addChild(child);
+            } else if (seen.add(name)) {
+                child = node.getChild(name, 0);
+            }
+
+            if (child == null) {
+                throw new DeserializationException("Snapshot does not match form at " + name);
+            }
+            readNode(dis, child, pf);
+        }
+
+        // nodes left out weren't relevant when the instance was saved
+        for (int i = 0; i < node.getNumChildren(); i++) {
+            TreeElement child = node.getChildAt(i);
+            if (!child.repeatable && !seen.contains(child.getName())) {
+                child.setRelevant(false);
+            }
+        }
+    }
+
+
+    /**
+     * Remove the snapshot of an instance, if it has one.
+     */
+    public static void delete(File instanceXml) {
+        File snapshot = getSnapshotFile(instanceXml);
+        if (snapshot.exists() && !snapshot.delete()) {
+            Log.e(t, "Failed to delete " + snapshot.getAbsolutePath());
+        }
+    }
+
+}
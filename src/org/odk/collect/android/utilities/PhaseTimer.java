@@ -0,0 +1,140 @@
+/*
+ * Copyright (C) 2009 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.odk.collect.android.utilities;
+
+import java.util.ArrayList;
+
+/**
+ * Records how long each phase of a load or save takes. Call {@link #mark} at the end of every
+ * phase; the phase is timed from the previous mark. Allocation is estimated from the growth of
+ * the used heap during the phase, so it reads as zero when the collector ran in between.
+ *
+ * @author Carl Hartung (carlhartung@gmail.com)
+ */
+public class PhaseTimer {
+
+    public final static String LOAD = "load";
+    public final static String SAVE = "save";
+    public final static String AUTOSAVE = "autosave";
+    public final static String COMPILE = "compile";
+
+    private final String mOperation;
+    private final String mFormName;
+    private final long mStartTime;
+
+    private final ArrayList<String> mPhases = new ArrayList<String>();
+    private final ArrayList<Long> mMillis = new ArrayList<Long>();
+    private final ArrayList<Long> mBytes = new ArrayList<Long>();
+
+    private long mLastTime;
+    private long mLastHeap;
+
+
+    /**
+     * @param operation {@link #LOAD} or {@link #SAVE}
+     * @param formName file name of the form being loaded or saved
+     */
+    public PhaseTimer(String operation, String formName) {
+        mOperation = operation;
+        mFormName = formName;
+        mStartTime = System.currentTimeMillis();
+        mLastTime = mStartTime;
+        mLastHeap = usedHeap();
+    }
+
+
+    /**
+     * End the current phase and start the next one.
+     *
+     * @param phase name of the phase that just finished
+     */
+    public void mark(String phase) {
+        long now = System.currentTimeMillis();
+        long heap = usedHeap();
+        mPhases.add(phase);
+        mMillis.add(Long.valueOf(now - mLastTime));
+        mBytes.add(Long.valueOf(Math.max(0, heap - mLastHeap)));
+        mLastTime = now;
+        mLastHeap = heap;
+    }
+
+
+    private static long usedHeap() {
+        Runtime r = Runtime.getRuntime();
+        return r.totalMemory() - r.freeMemory();
+    }
+
+
+    public String getOperation() {
+        return mOperation;
+    }
+
+
+    public String getFormName() {
+        return mFormName;
+    }
+
+
+    /**
+     * @return wall clock time the timer was created at
+     */
+    public long getStartTime() {
+        return mStartTime;
+    }
+
+
+    public int getPhaseCount() {
+        return mPhases.size();
+    }
+
+
+    public String getPhase(int i) {
+        return mPhases.get(i);
+    }
+
+
+    public long getMillis(int i) {
+        return mMillis.get(i).longValue();
+    }
+
+
+    public long getBytes(int i) {
+        return mBytes.get(i).longValue();
+    }
+
+
+    /**
+     * @return time from creation to the last mark
+     */
+    public long getTotalMillis() {
+        return mLastTime - mStartTime;
+    }
+
+
+    @Override
+    public String toString() {
+        StringBuffer sb = new StringBuffer();
+        sb.append(mOperation).append(' ').append(mFormName).append(':');
+        for (int i = 0; i < mPhases.size(); i++) {
+            sb.append(' ').append(mPhases.get(i)).append(' ').append(mMillis.get(i)).append("ms/")
+                    .append(mBytes.get(i).longValue() / 1024).append("KB,");
+        }
+        sb.append(" total ").append(getTotalMillis()).append("ms");
+        return sb.toString();
+    }
+
+}
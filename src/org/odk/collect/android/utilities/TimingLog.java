@@ -0,0 +1,272 @@
+/*
+ * Copyright (C) 2009 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.odk.collect.android.utilities;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+
+import org.odk.collect.android.logic.GlobalConstants;
+
+import android.util.Log;
+
+/**
+ * Keeps the phase timings of recent loads and saves in a hidden file in the cache folder. The
+ * file rolls over to a single older file once it grows past {@link #MAX_LENGTH}, so at most twice
+ * that is kept on the sd card. Each line holds one load or save:
+ *
+ * <pre>
+ * start time, operation, form, phase:millis:bytes ...
+ * </pre>
+ *
+ * separated by tabs.
+ *
+ * @author Carl Hartung (carlhartung@gmail.com)
+ */
+public class TimingLog {
+    private final static String t = "TimingLog";
+
+    private final static String LOG_PATH = GlobalConstants.CACHE_PATH + ".timings";
+    private final static String OLD_LOG_PATH = LOG_PATH + ".old";
+
+    private final static long MAX_LENGTH = 128 * 1024;
+
+    public final static String TOTAL = "total";
+
+    /**
+     * Percentiles of one phase over every logged run of one form.
+     */
+    public static class Stats {
+        public final String operation;
+        public final String formName;
+        public final String phase;
+        public final int count;
+        public final long p50;
+        public final long p90;
+        public final long max;
+        public final long bytesP50;
+
+
+        Stats(String operation, String formName, String phase, long[] millis, long[] bytes) {
+            this.operation = operation;
+            this.formName = formName;
+            this.phase = phase;
+            this.count = millis.length;
+            Arrays.sort(millis);
+            Arrays.sort(bytes);
+            this.p50 = percentile(millis, 50);
+            this.p90 = percentile(millis, 90);
+            this.max = millis[millis.length - 1];
+            this.bytesP50 = percentile(bytes, 50);
+        }
+    }
+
+
+    /**
+     * Log the timer and write it to the timing file. Does file io, so call from a background
+     * thread.
+     */
+    public static synchronized void append(PhaseTimer timer) {
+        Log.i(t, timer.toString());
+
+        if (!FileUtils.createFolder(GlobalConstants.CACHE_PATH)) {
+            return;
+        }
+        File log = new File(LOG_PATH);
+        if (log.length() > MAX_LENGTH) {
+            File old = new File(OLD_LOG_PATH);
+            old.delete();
+            if (!log.renameTo(old)) {
+                Log.e(t, "Failed to roll " + LOG_PATH);
+            }
+        }
+
+        StringBuffer sb = new StringBuffer();
+        sb.append(timer.getStartTime()).append('\t').append(timer.getOperation()).append('\t')
+                .append(clean(timer.getFormName()));
+        for (int i = 0; i < timer.getPhaseCount(); i++) {
+            sb.append('\t').append(clean(timer.getPhase(i))).append(':')
+                    .append(timer.getMillis(i)).append(':').append(timer.getBytes(i));
+        }
+        sb.append('\n');
+
+        FileWriter fw = null;
+        try {
+            fw = new FileWriter(log, true);
+            fw.write(sb.toString());
+        } catch (IOException e) {
+            Log.e(t, "Cannot append to " + LOG_PATH);
+        } finally {
+            if (fw != null) {
+                try {
+                    fw.close();
+                } catch (IOException e) {
+                    Log.e(t, "Cannot close " + LOG_PATH);
+                }
+            }
+        }
+    }
+
+
+    /**
+     * Read both timing files and summarize every phase of every form, including a
+     * {@link #TOTAL} phase for the whole run.
+     *
+     * @return stats ordered by operation and form, with the total first and then the phases in
+     *         the order they first appeared
+     */
+    public static synchronized ArrayList<Stats> getStats() {
+        // runs keyed by operation and form, then phases in the order they were first seen
+        HashMap<String, HashMap<String, ArrayList<long[]>>> runs =
+                new HashMap<String, HashMap<String, ArrayList<long[]>>>();
+        HashMap<String, ArrayList<String>> phaseOrder = new HashMap<String, ArrayList<String>>();
+
+        readLog(new File(OLD_LOG_PATH), runs, phaseOrder);
+        readLog(new File(LOG_PATH), runs, phaseOrder);
+
+        ArrayList<String> keys = new ArrayList<String>(runs.keySet());
+        Collections.sort(keys);
+
+        ArrayList<Stats> stats = new ArrayList<Stats>();
+        for (String key : keys) {
+            int tab = key.indexOf('\t');
+            String operation = key.substring(0, tab);
+            String formName = key.substring(tab + 1);
+            HashMap<String, ArrayList<long[]>> phases = runs.get(key);
+            for (String phase : phaseOrder.get(key)) {
+                ArrayList<long[]> samples = phases.get(phase);
+                long[] millis = new long[samples.size()];
+                long[] bytes = new long[samples.size()];
+                for (int i = 0; i < millis.length; i++) {
+                    millis[i] = samples.get(i)[0];
+                    bytes[i] = samples.get(i)[1];
+                }
+                stats.add(new Stats(operation, formName, phase, millis, bytes));
+            }
+        }
+        return stats;
+    }
+
+
+    private static void readLog(File log,
+            HashMap<String, HashMap<String, ArrayList<long[]>>> runs,
+            HashMap<String, ArrayList<String>> phaseOrder) {
+        if (!log.exists()) {
+            return;
+        }
+
+        BufferedReader br = null;
+        try {
+            br = new BufferedReader(new FileReader(log), 8192);
+            String line;
+            while ((line = br.readLine()) != null) {
+                String[] fields = line.split("\t");
+                if (fields.length < 4) {
+                    // cut short by a crash
+                    continue;
+                }
+                String key = fields[1] + "\t" + fields[2];
+                HashMap<String, ArrayList<long[]>> phases = runs.get(key);
+                if (phases == null) {
+                    phases = new HashMap<String, ArrayList<long[]>>();
+                    runs.put(key, phases);
+                    ArrayList<String> order = new ArrayList<String>();
+                    order.add(TOTAL);
+                    phaseOrder.put(key, order);
+                }
+
+                long totalMillis = 0;
+                long totalBytes = 0;
+                for (int i = 3; i < fields.length; i++) {
+                    String[] parts = fields[i].split(":");
+                    if (parts.length != 3) {
+                        continue;
+                    }
+                    try {
+                        long millis = Long.parseLong(parts[1]);
+                        long bytes = Long.parseLong(parts[2]);
+                        addSample(key, parts[0], millis, bytes, phases, phaseOrder);
+                        totalMillis += millis;
+                        totalBytes += bytes;
+                    } catch (NumberFormatException e) {
+                        Log.e(t, "Bad timing " + fields[i] + " in " + log.getName());
+                    }
+                }
+                addSample(key, TOTAL, totalMillis, totalBytes, phases, phaseOrder);
+            }
+        } catch (FileNotFoundException e) {
+            Log.e(t, "Cannot open " + log.getAbsolutePath());
+        } catch (IOException e) {
+            Log.e(t, "Error reading " + log.getAbsolutePath());
+        } finally {
+            if (br != null) {
+                try {
+                    br.close();
+                } catch (IOException e) {
+                    Log.e(t, "Cannot close " + log.getAbsolutePath());
+                }
+            }
+        }
+    }
+
+
+    private static void addSample(String key, String phase, long millis, long bytes,
+            HashMap<String, ArrayList<long[]>> phases,
+            HashMap<String, ArrayList<String>> phaseOrder) {
+        ArrayList<long[]> samples = phases.get(phase);
+        if (samples == null) {
+            samples = new ArrayList<long[]>();
+            phases.put(phase, samples);
+            ArrayList<String> order = phaseOrder.get(key);
+            if (!order.contains(phase)) {
+                order.add(phase);
+            }
+        }
+        samples.add(new long[] {millis, bytes});
+    }
+
+
+    /**
+     * Nearest rank percentile of sorted values.
+     */
+    private static long percentile(long[] sorted, int percent) {
+        int rank = (percent * sorted.length + 99) / 100;
+        return sorted[Math.max(0, rank - 1)];
+    }
+
+
+    private static String clean(String s) {
+        return s == null ? "" : s.replace('\t', ' ').replace('\n', ' ').replace(':', '_');
+    }
+
+
+    /**
+     * Remove both timing files.
+     */
+    public static synchronized void clear() {
+        new File(LOG_PATH).delete();
+        new File(OLD_LOG_PATH).delete();
+    }
+
+}